@@ -0,0 +1,209 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2019 by Eric House (eehouse@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.eehouse.android.nbsp;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Nagle for NBS. Small messages for the same phone and port are held for a
+ * short while so that several can share a PDU. They're packed as
+ *
+ *  [len][msg][len][msg]...
+ *
+ * with one-byte lengths, and sent with Wire.FLAG_PACKED set so the other
+ * end knows to split them apart again. A message waits no longer than the
+ * delay its client asked for, measured from when the oldest message held
+ * for the same destination arrived, and a PDU that fills up goes at once.
+ *
+ * Every send happens on sHandler's thread, so one that's due and one
+ * that can't wait go out in the order they were decided on.
+ *
+ * Held messages are only in memory: they reach the Outbox when they're
+ * sent, so if the process is killed while they wait they're lost.
+ */
+class Coalescer {
+    private static final String TAG = Coalescer.class.getSimpleName();
+
+    // What's left of a PDU after Wire.frame()'s header
+    private static final int MAX_PACKED = Wire.MAX_PDU - Wire.FRAME_HEADER_LEN;
+
+    private static Map<String, Pending> sPending = new HashMap<>();
+    private static Handler sHandler;
+
+    private static class Pending {
+        String phone;
+        short port;
+        List<byte[]> msgs = new ArrayList<>();
+        int packedLen;
+        long flushAt;
+        Runnable flusher;
+        Pending( String phone, short port ) { this.phone = phone; this.port = port; }
+    }
+
+    static void add( final Context context, String phone, short port,
+                     byte[] data, int maxDelayMS )
+    {
+        List<Pending> ready = new ArrayList<>();
+        byte[] sendNow = null;
+        synchronized ( Coalescer.class ) {
+            final String key = phone + ":" + port;
+            Pending pending = sPending.get( key );
+            if ( data.length + 1 > MAX_PACKED ) {
+                // Too big to share. Send it now, but after whatever's
+                // waiting so order's preserved.
+                if ( pending != null ) {
+                    ready.add( remove( key ) );
+                }
+                sendNow = data;
+            } else {
+                if ( pending != null && pending.packedLen + 1 + data.length > MAX_PACKED ) {
+                    ready.add( remove( key ) );
+                    pending = null;
+                }
+                if ( pending == null ) {
+                    pending = new Pending( phone, port );
+                    sPending.put( key, pending );
+                }
+                pending.msgs.add( data );
+                pending.packedLen += 1 + data.length;
+
+                // Full enough that nothing else will fit?
+                if ( pending.packedLen + 2 > MAX_PACKED ) {
+                    ready.add( remove( key ) );
+                } else {
+                    long flushAt = System.currentTimeMillis() + maxDelayMS;
+                    if ( pending.flusher == null || flushAt < pending.flushAt ) {
+                        if ( pending.flusher != null ) {
+                            getHandler().removeCallbacks( pending.flusher );
+                        }
+                        pending.flushAt = flushAt;
+                        pending.flusher = new Runnable() {
+                                @Override
+                                public void run() {
+                                    Pending due;
+                                    synchronized ( Coalescer.class ) {
+                                        due = remove( key );
+                                    }
+                                    if ( due != null ) {
+                                        send( context, due );
+                                    }
+                                }
+                            };
+                        getHandler().postDelayed( pending.flusher, maxDelayMS );
+                    }
+                }
+            }
+        }
+
+        if ( 0 < ready.size() || sendNow != null ) {
+            postSends( context, ready, phone, port, sendNow );
+        }
+    }
+
+    /**
+     * @return the messages in packed, which must be the body of a frame
+     * that had Wire.FLAG_PACKED set, or null if it's malformed
+     */
+    static List<byte[]> unpack( byte[] packed )
+    {
+        List<byte[]> result = new ArrayList<>();
+        int offset = 0;
+        while ( result != null && offset < packed.length ) {
+            int len = packed[offset++] & 0xFF;
+            if ( offset + len > packed.length ) {
+                Log.e( TAG, "unpack(): bad length " + len );
+                result = null;
+            } else {
+                byte[] msg = new byte[len];
+                System.arraycopy( packed, offset, msg, 0, len );
+                result.add( msg );
+                offset += len;
+            }
+        }
+        return result;
+    }
+
+    // Must hold lock on Coalescer.class
+    private static Pending remove( String key )
+    {
+        Pending pending = sPending.remove( key );
+        if ( pending != null && pending.flusher != null ) {
+            getHandler().removeCallbacks( pending.flusher );
+        }
+        return pending;
+    }
+
+    // Sends on the flushers' thread, so a flush that's already begun
+    // finishes before these go
+    private static void postSends( final Context context, final List<Pending> ready,
+                                   final String phone, final short port,
+                                   final byte[] sendNow )
+    {
+        getHandler().post( new Runnable() {
+                @Override
+                public void run() {
+                    for ( Pending pending : ready ) {
+                        send( context, pending );
+                    }
+                    if ( sendNow != null ) {
+                        RequestReceiver.sendNow( context, phone, port, sendNow, 0 );
+                    }
+                }
+            } );
+    }
+
+    private static void send( Context context, Pending pending )
+    {
+        if ( 1 == pending.msgs.size() ) {
+            // Nothing to share with; don't pay for packing
+            RequestReceiver.sendNow( context, pending.phone, pending.port,
+                                     pending.msgs.get(0), 0 );
+        } else {
+            ByteArrayOutputStream bas = new ByteArrayOutputStream( pending.packedLen );
+            for ( byte[] msg : pending.msgs ) {
+                bas.write( msg.length );
+                bas.write( msg, 0, msg.length );
+            }
+            Log.d( TAG, "send(): packed " + pending.msgs.size() + " msgs into "
+                   + pending.packedLen + " bytes" );
+            RequestReceiver.sendNow( context, pending.phone, pending.port,
+                                     bas.toByteArray(), Wire.FLAG_PACKED );
+        }
+    }
+
+    private static synchronized Handler getHandler()
+    {
+        if ( sHandler == null ) {
+            HandlerThread thread = new HandlerThread( TAG );
+            thread.start();
+            sHandler = new Handler( thread.getLooper() );
+        }
+        return sHandler;
+    }
+}
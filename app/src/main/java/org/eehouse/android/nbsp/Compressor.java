@@ -0,0 +1,83 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2019 by Eric House (eehouse@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.eehouse.android.nbsp;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw Deflate (no zlib header or checksum: every byte costs) primed with the
+ * dictionary a client registered for its port. Both ends must have the same
+ * dictionary, which they will if it's the same client app on both.
+ */
+class Compressor {
+    // Nothing legit inflates bigger than this
+    private static final int MAX_INFLATED = 64 * 1024;
+
+    static byte[] deflate( byte[] data, byte[] dict )
+    {
+        Deflater deflater = new Deflater( Deflater.BEST_COMPRESSION, true );
+        try {
+            deflater.setDictionary( dict );
+            deflater.setInput( data );
+            deflater.finish();
+
+            ByteArrayOutputStream bas = new ByteArrayOutputStream( data.length );
+            byte[] buf = new byte[256];
+            while ( !deflater.finished() ) {
+                int len = deflater.deflate( buf );
+                bas.write( buf, 0, len );
+            }
+            return bas.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static byte[] inflate( byte[] data, byte[] dict ) throws DataFormatException
+    {
+        Inflater inflater = new Inflater( true );
+        try {
+            inflater.setDictionary( dict );
+            // Raw inflate wants a dummy byte past the end of the input
+            byte[] input = new byte[data.length + 1];
+            System.arraycopy( data, 0, input, 0, data.length );
+            inflater.setInput( input );
+
+            ByteArrayOutputStream bas = new ByteArrayOutputStream( data.length * 2 );
+            byte[] buf = new byte[256];
+            while ( !inflater.finished() ) {
+                int len = inflater.inflate( buf );
+                if ( len == 0 && (inflater.needsInput() || inflater.needsDictionary()) ) {
+                    throw new DataFormatException( "truncated input" );
+                }
+                bas.write( buf, 0, len );
+                if ( bas.size() > MAX_INFLATED ) {
+                    throw new DataFormatException( "inflates too big" );
+                }
+            }
+            return bas.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+}
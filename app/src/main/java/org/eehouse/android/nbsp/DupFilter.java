@@ -0,0 +1,94 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2019 by Eric House (eehouse@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.eehouse.android.nbsp;
+
+/**
+ * Remembers recently-received PDUs so that ones the carrier delivers twice
+ * can be dropped.
+ *
+ * A PDU is identified by a 64-bit hash of its sender, port, service-center
+ * timestamp and payload. The timestamp is what distinguishes a carrier's
+ * duplicate from a client deliberately sending the same bytes again.
+ *
+ * Hashes live in a fixed-size open-addressed table. A hash can only be in
+ * the PROBES slots following its home slot, so lookups and inserts are
+ * cheap and there's never anything to delete: expired slots are simply
+ * reused, and if all are live the oldest is.
+ */
+class DupFilter {
+    private static final int SIZE = 1024; // must be a power of 2
+    private static final int PROBES = 16;
+    private static final long WINDOW_MS = 30 * 60 * 1000;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // 0 means empty
+    private static final long[] sHashes = new long[SIZE];
+    private static final long[] sStamps = new long[SIZE];
+
+    /**
+     * Records the PDU as seen.
+     *
+     * @return true if it's been seen in the past WINDOW_MS
+     */
+    static synchronized boolean isDuplicate( String phone, short port,
+                                             long timestamp, byte[] data )
+    {
+        long hash = hash( phone, port, timestamp, data );
+        long now = System.currentTimeMillis();
+        long tooOld = now - WINDOW_MS;
+
+        boolean found = false;
+        int home = (int)(hash ^ (hash >>> 32)) & (SIZE - 1);
+        int victim = home;
+        for ( int ii = 0; !found && ii < PROBES; ++ii ) {
+            int slot = (home + ii) & (SIZE - 1);
+            if ( sHashes[slot] == hash && sStamps[slot] >= tooOld ) {
+                found = true;
+            } else if ( sStamps[slot] < sStamps[victim] ) {
+                victim = slot;  // empty or expired slots are oldest of all
+            }
+        }
+
+        if ( !found ) {
+            sHashes[victim] = hash;
+            sStamps[victim] = now;
+        }
+        return found;
+    }
+
+    // 64-bit FNV-1a
+    private static long hash( String phone, short port, long timestamp, byte[] data )
+    {
+        long hash = FNV_OFFSET;
+        for ( int ii = 0; ii < phone.length(); ++ii ) {
+            hash = (hash ^ phone.charAt( ii )) * FNV_PRIME;
+        }
+        hash = (hash ^ port) * FNV_PRIME;
+        for ( int ii = 0; ii < 64; ii += 8 ) {
+            hash = (hash ^ ((timestamp >>> ii) & 0xFF)) * FNV_PRIME;
+        }
+        for ( byte byt : data ) {
+            hash = (hash ^ (byt & 0xFF)) * FNV_PRIME;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+}
@@ -0,0 +1,314 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2019 by Eric House (eehouse@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.eehouse.android.nbsp;
+
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * How StatsDB stores values in its key/value table: a tag byte saying what
+ * the value is, then the value. The types StatsDB's users actually store
+ * (PortReg's maps and sets of shorts, strings and byte arrays, ints) are
+ * written field by field, with lengths and counts as varints, so a map of
+ * a few registrations takes tens of bytes rather than the hundreds Java
+ * serialization spends on class descriptors. Anything else still falls
+ * back to Java serialization.
+ *
+ * Before DB_VERSION 4 every value was a string, Serializables in Base64,
+ * and the upgrade moved them over as TAG_OLD so the decoders can still
+ * read them. They're rewritten in the new form next time they're put().
+ */
+class KVCodec {
+    private static final String TAG = KVCodec.class.getSimpleName();
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_STRING = 1;
+    private static final int TAG_INT = 2;
+    private static final int TAG_SHORT = 3;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_BYTES = 5;
+    private static final int TAG_SET = 6;       // a HashSet
+    private static final int TAG_MAP = 7;       // a HashMap
+    private static final int TAG_JAVA = 8;      // anything else, serialized
+    private static final int TAG_OLD = 9;       // a pre-DB_VERSION 4 string
+
+    static byte[] encodeString( String value )
+    {
+        return encode( (Serializable)value );
+    }
+
+    static byte[] encodeInt( int value )
+    {
+        return encode( (Serializable)Integer.valueOf( value ) );
+    }
+
+    static byte[] encode( Serializable value )
+    {
+        byte[] result = null;
+        try {
+            ByteArrayOutputStream bas = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream( bas );
+            write( dos, value );
+            dos.flush();
+            result = bas.toByteArray();
+        } catch ( IOException ioe ) {
+            Log.e( TAG, "encode(): " + ioe );
+        }
+        return result;
+    }
+
+    /**
+     * Wrap a value as stored before DB_VERSION 4, for the upgrade
+     */
+    static byte[] encodeOld( String value )
+    {
+        byte[] result = encodeString( value );
+        if ( result != null ) {
+            result[0] = TAG_OLD;
+        }
+        return result;
+    }
+
+    static String decodeString( byte[] bytes )
+    {
+        String result = null;
+        if ( bytes != null ) {
+            if ( TAG_OLD == bytes[0] ) {
+                bytes = bytes.clone();
+                bytes[0] = TAG_STRING;
+            }
+            Object obj = decodeObject( bytes );
+            if ( obj != null ) {
+                result = obj.toString();
+            }
+        }
+        return result;
+    }
+
+    static int decodeInt( byte[] bytes, int dflt )
+    {
+        int result = dflt;
+        if ( bytes != null && TAG_INT == bytes[0] ) {
+            Object obj = decodeObject( bytes );
+            if ( obj instanceof Integer ) {
+                result = (Integer)obj;
+            }
+        } else if ( bytes != null && TAG_OLD == bytes[0] ) {
+            try {
+                result = Integer.parseInt( decodeString( bytes ) );
+            } catch ( NumberFormatException nfe ) {
+                Log.e( TAG, "decodeInt(): " + nfe.getMessage() );
+            }
+        }
+        return result;
+    }
+
+    static Serializable decode( byte[] bytes )
+    {
+        Serializable result = null;
+        if ( bytes == null ) {
+            // nothing to do
+        } else if ( TAG_OLD == bytes[0] ) {
+            String asStr = decodeString( bytes );
+            result = asStr == null ? null
+                : deserialize( Base64.decode( asStr, Base64.NO_WRAP ) );
+        } else {
+            result = (Serializable)decodeObject( bytes );
+        }
+        return result;
+    }
+
+    private static Object decodeObject( byte[] bytes )
+    {
+        Object result = null;
+        try {
+            DataInputStream dis =
+                new DataInputStream( new ByteArrayInputStream( bytes ) );
+            result = read( dis );
+        } catch ( IOException ioe ) {
+            Log.e( TAG, "decodeObject(): " + ioe );
+        }
+        return result;
+    }
+
+    private static void write( DataOutputStream dos, Object obj ) throws IOException
+    {
+        if ( obj == null ) {
+            dos.writeByte( TAG_NULL );
+        } else if ( obj instanceof String ) {
+            dos.writeByte( TAG_STRING );
+            writeBytes( dos, ((String)obj).getBytes( "UTF-8" ) );
+        } else if ( obj instanceof Integer ) {
+            dos.writeByte( TAG_INT );
+            dos.writeInt( (Integer)obj );
+        } else if ( obj instanceof Short ) {
+            dos.writeByte( TAG_SHORT );
+            dos.writeShort( (Short)obj );
+        } else if ( obj instanceof Long ) {
+            dos.writeByte( TAG_LONG );
+            dos.writeLong( (Long)obj );
+        } else if ( obj instanceof byte[] ) {
+            dos.writeByte( TAG_BYTES );
+            writeBytes( dos, (byte[])obj );
+        } else if ( obj.getClass() == HashSet.class ) {
+            HashSet<?> set = (HashSet<?>)obj;
+            dos.writeByte( TAG_SET );
+            writeVarint( dos, set.size() );
+            for ( Object elem : set ) {
+                write( dos, elem );
+            }
+        } else if ( obj.getClass() == HashMap.class ) {
+            HashMap<?, ?> map = (HashMap<?, ?>)obj;
+            dos.writeByte( TAG_MAP );
+            writeVarint( dos, map.size() );
+            for ( Map.Entry<?, ?> entry : map.entrySet() ) {
+                write( dos, entry.getKey() );
+                write( dos, entry.getValue() );
+            }
+        } else {
+            ByteArrayOutputStream bas = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream( bas );
+            out.writeObject( obj );
+            out.flush();
+            dos.writeByte( TAG_JAVA );
+            writeBytes( dos, bas.toByteArray() );
+        }
+    }
+
+    private static Object read( DataInputStream dis ) throws IOException
+    {
+        Object result;
+        int tag = dis.readByte();
+        switch ( tag ) {
+        case TAG_NULL:
+            result = null;
+            break;
+        case TAG_STRING:
+            result = new String( readBytes( dis ), "UTF-8" );
+            break;
+        case TAG_INT:
+            result = dis.readInt();
+            break;
+        case TAG_SHORT:
+            result = dis.readShort();
+            break;
+        case TAG_LONG:
+            result = dis.readLong();
+            break;
+        case TAG_BYTES:
+            result = readBytes( dis );
+            break;
+        case TAG_SET: {
+            int count = readVarint( dis );
+            HashSet<Object> set = new HashSet<>();
+            for ( int ii = 0; ii < count; ++ii ) {
+                set.add( read( dis ) );
+            }
+            result = set;
+            break;
+        }
+        case TAG_MAP: {
+            int count = readVarint( dis );
+            HashMap<Object, Object> map = new HashMap<>();
+            for ( int ii = 0; ii < count; ++ii ) {
+                Object key = read( dis );
+                map.put( key, read( dis ) );
+            }
+            result = map;
+            break;
+        }
+        case TAG_JAVA:
+            result = deserialize( readBytes( dis ) );
+            break;
+        default:
+            throw new IOException( "bad tag " + tag );
+        }
+        return result;
+    }
+
+    private static Serializable deserialize( byte[] bytes )
+    {
+        Serializable result = null;
+        try {
+            ObjectInputStream ois =
+                new ObjectInputStream( new ByteArrayInputStream( bytes ) );
+            result = (Serializable)ois.readObject();
+        } catch ( Exception ex ) {
+            Log.d( TAG, "deserialize(): " + ex.getMessage() );
+        }
+        return result;
+    }
+
+    private static void writeBytes( DataOutputStream dos, byte[] bytes )
+        throws IOException
+    {
+        writeVarint( dos, bytes.length );
+        dos.write( bytes );
+    }
+
+    private static byte[] readBytes( DataInputStream dis ) throws IOException
+    {
+        byte[] result = new byte[readVarint( dis )];
+        dis.readFully( result );
+        return result;
+    }
+
+    // Seven bits at a time, low first; the high bit means more follow
+    private static void writeVarint( DataOutputStream dos, int val )
+        throws IOException
+    {
+        while ( 0 != (val & ~0x7F) ) {
+            dos.writeByte( (val & 0x7F) | 0x80 );
+            val >>>= 7;
+        }
+        dos.writeByte( val );
+    }
+
+    private static int readVarint( DataInputStream dis ) throws IOException
+    {
+        int result = 0;
+        for ( int shift = 0; ; shift += 7 ) {
+            int byt = dis.readUnsignedByte();
+            result |= (byt & 0x7F) << shift;
+            if ( 0 == (byt & 0x80) ) {
+                break;
+            }
+            if ( shift > 28 ) {
+                throw new IOException( "bad varint" );
+            }
+        }
+        if ( result < 0 ) {
+            throw new IOException( "bad length" );
+        }
+        return result;
+    }
+}
@@ -0,0 +1,56 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2019 by Eric House (eehouse@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.eehouse.android.nbsp;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Hands each PDU straight to NBSReceiver as if the carrier had delivered
+ * it, reporting it sent and delivered as it goes. Nothing's rate-limited,
+ * so it runs the rest of the pipeline (reassembly, registration lookup,
+ * fan-out, stats) as fast as it'll go.
+ */
+class LoopbackTransport extends Transport {
+    private static final String TAG = LoopbackTransport.class.getSimpleName();
+
+    @Override
+    void send( Context context, String phone, short port, byte[] pdu,
+               PendingIntent sent, PendingIntent delivery )
+    {
+        fire( context, sent );
+        NBSReceiver.receiveLoopback( context, phone, port, pdu );
+        fire( context, delivery );
+    }
+
+    @Override
+    boolean isRadio() { return false; }
+
+    private static void fire( Context context, PendingIntent intent )
+    {
+        try {
+            intent.send( context, Activity.RESULT_OK, null );
+        } catch ( PendingIntent.CanceledException ce ) {
+            Log.e( TAG, "fire(): " + ce.getMessage() );
+        }
+    }
+}
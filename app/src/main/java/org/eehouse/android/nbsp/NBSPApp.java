@@ -19,12 +19,7 @@
 
 package org.eehouse.android.nbsp;
 
-import android.app.Activity;
 import android.app.Application;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.util.Log;
 
 import org.eehouse.android.nbsplib.NBSProxy;
@@ -94,21 +89,9 @@ public class NBSPApp extends Application {
                            }
                        });
 
-        // Broadcast receivers for results from NBS message sends. Right now
-        // we just log what happened.
-        BroadcastReceiver br = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                String action = intent.getAction();
-                boolean success = Activity.RESULT_OK == getResultCode();
-                Log.d( TAG, "notified of nbs send progress: action: " + action
-                       + "; success: " + success );
-            }
-        };
-
-        for ( int id : new int[] {R.string.msg_sent, R.string.msg_delivered}) {
-            registerReceiver( br, new IntentFilter( getString(id) ) );
-        }
+        // Results from NBS message sends go to SendStatusReceiver. Here we
+        // just retry anything a previous run left unsent.
+        Outbox.resume( this );
 
         NBSReceiver.onAppLaunched( this );
 
@@ -28,6 +28,7 @@ import android.telephony.SmsMessage;
 import android.util.Base64;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -36,13 +37,20 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
 
+import org.eehouse.android.nbsplib.Envelope;
 import org.eehouse.android.nbsplib.NBSProxy;
 
 public class NBSReceiver extends BroadcastReceiver {
     private static final String TAG = NBSReceiver.class.getSimpleName();
     private static final Pattern sPortPat = Pattern.compile("^sms://localhost:(\\d+)$");
 
+    // For messages the carrier (rather than Wire) split into several SMS,
+    // whose parts may arrive in one intent or several
+    private static final Reassembler sConcats =
+        new Reassembler( 64 * 1024, 15 * 60 * 1000 );
+
     @Override
     public void onReceive( Context context, Intent intent )
     {
@@ -52,22 +60,92 @@ public class NBSReceiver extends BroadcastReceiver {
             Bundle bundle = intent.getExtras();
             if ( null != bundle ) {
                 Object[] pdus = (Object[])bundle.get( "pdus" );
-                SmsMessage[] smses = new SmsMessage[pdus.length];
+                String format = bundle.getString( "format" );
+                boolean gsm = format == null || "3gpp".equals( format );
 
+                // Whatever's complete once this intent's PDUs are in. One
+                // lookup covers them all.
+                List<String> phones = new ArrayList<>();
+                List<byte[]> bodies = new ArrayList<>();
                 for ( int ii = 0; ii < pdus.length; ++ii ) {
-                    SmsMessage sms = SmsMessage.createFromPdu((byte[])pdus[ii]);
+                    byte[] pdu = (byte[])pdus[ii];
+                    SmsMessage sms = SmsMessage.createFromPdu( pdu );
                     if ( null != sms ) {
                         try {
                             String phone = sms.getOriginatingAddress();
-                            byte[] body = sms.getUserData();
-                            forward( context, port, phone, body );
+                            byte[] data = sms.getUserData();
+                            if ( DupFilter.isDuplicate( phone, port,
+                                                        sms.getTimestampMillis(),
+                                                        data ) ) {
+                                Log.d( TAG, "dropping duplicate from " + phone );
+                                StatsDB.recordDuplicate( context, port );
+                                data = null;
+                            }
+                            int[] concat = gsm && data != null
+                                ? getConcatInfo( pdu ) : null;
+                            if ( concat != null ) {
+                                String key = phone + ":" + port + ":" + concat[0];
+                                data = sConcats.add( key, concat[2] - 1, concat[1], data );
+                            }
+                            byte[] body = data == null ? null
+                                : Wire.join( phone, port, data );
+                            if ( body != null ) {
+                                phones.add( phone );
+                                bodies.add( body );
+                            }
                         } catch ( NullPointerException npe ) {
                             Log.e( TAG, "npe: " + npe.getMessage() );
                         }
                     }
                 }
+                if ( 0 < bodies.size() ) {
+                    forward( context, port, phones, bodies );
+                }
+            }
+        }
+    }
+
+    /**
+     * @return {reference, count, sequence (1-based)} if pdu, a 3GPP
+     * SMS-DELIVER, carries a concatenation header; otherwise null.
+     * SmsMessage parses this but doesn't share it.
+     */
+    private static int[] getConcatInfo( byte[] pdu )
+    {
+        int[] result = null;
+        try {
+            int offset = 1 + (pdu[0] & 0xFF); // skip SMSC address
+            int firstOctet = pdu[offset++] & 0xFF;
+            if ( 0 != (firstOctet & 0x40) ) { // TP-UDHI: there's a header
+                int addrDigits = pdu[offset++] & 0xFF;
+                offset += 1 + (addrDigits + 1) / 2; // type, then semi-octets
+                offset += 1 + 1 + 7 + 1;           // PID, DCS, SCTS, UDL
+                int headerLen = pdu[offset++] & 0xFF;
+                int end = offset + headerLen;
+                while ( result == null && offset + 2 <= end ) {
+                    int iei = pdu[offset] & 0xFF;
+                    int ieLen = pdu[offset + 1] & 0xFF;
+                    int ie = offset + 2;
+                    if ( 0x00 == iei && 3 == ieLen ) { // 8-bit reference
+                        result = new int[] { pdu[ie] & 0xFF, pdu[ie + 1] & 0xFF,
+                                             pdu[ie + 2] & 0xFF };
+                    } else if ( 0x08 == iei && 4 == ieLen ) { // 16-bit reference
+                        result = new int[] { ((pdu[ie] & 0xFF) << 8) | (pdu[ie + 1] & 0xFF),
+                                             pdu[ie + 2] & 0xFF, pdu[ie + 3] & 0xFF };
+                    }
+                    offset = ie + ieLen;
+                }
             }
+        } catch ( ArrayIndexOutOfBoundsException ex ) {
+            Log.e( TAG, "getConcatInfo(): malformed pdu" );
+            result = null;
         }
+
+        if ( result != null
+             && ( result[1] < 2 || result[2] < 1 || result[2] > result[1] ) ) {
+            result = null;      // nonsense, or a message of one part
+        }
+        return result;
     }
 
     private short getPort( Context context, Intent intent )
@@ -81,11 +159,29 @@ public class NBSReceiver extends BroadcastReceiver {
         return result;
     }
 
-    private void forward( final Context context, final short port,
-                          final String phone, final byte[] clientData )
+    /**
+     * For LoopbackTransport: take up a PDU we sent where the carrier would
+     * have delivered it. There's no SMS header, so no carrier concatenation
+     * or duplicates to deal with.
+     */
+    static void receiveLoopback( Context context, String phone, short port,
+                                 byte[] pdu )
     {
-        Log.i( TAG, "got " + clientData.length + " bytes from " + phone
-               + " on port " + port );
+        byte[] body = Wire.join( phone, port, pdu );
+        if ( body != null ) {
+            List<String> phones = new ArrayList<>();
+            List<byte[]> bodies = new ArrayList<>();
+            phones.add( phone );
+            bodies.add( body );
+            forward( context, port, phones, bodies );
+        }
+    }
+
+    // phones.get(ii) sent bodies.get(ii)
+    private static void forward( final Context context, final short port,
+                          final List<String> phones, final List<byte[]> bodies )
+    {
+        Log.i( TAG, "got " + bodies.size() + " msgs on port " + port );
 
         PortReg.lookup( context, new short[] {port}, new PortReg.OnHaveAppIDs() {
                 @Override
@@ -94,27 +190,92 @@ public class NBSReceiver extends BroadcastReceiver {
                     if ( appIDs == null || appIDs.size() == 0 ) {
                         Log.e( TAG, "no app registered for port " + port );
                     } else {
-                        String asStr = Base64.encodeToString( clientData,
-                                                              Base64.NO_WRAP );
-                        for ( String appID : appIDs.get(port) ) {
-                            try {
-                                Intent intent = makeRXIntent( appID )
-                                    .putExtra( Intent.EXTRA_TEXT, asStr )
-                                    .putExtra( NBSProxy.EXTRA_PHONE, phone )
-                                    .putExtra( NBSProxy.EXTRA_PORT, port )
-                                    ;
-                                context.sendBroadcast( intent );
-                            } catch ( android.content.ActivityNotFoundException anfe ) {
-                                Log.e( TAG, "ActivityNotFoundException: "
-                                       + anfe.getMessage() );
+                        for ( int ii = 0; ii < bodies.size(); ++ii ) {
+                            String phone = phones.get( ii );
+                            List<byte[]> msgs = unframe( context, port, bodies.get( ii ) );
+                            for ( int jj = 0; msgs != null && jj < msgs.size(); ++jj ) {
+                                fanOut( context, port, phone, appIDs.get(port),
+                                        msgs.get( jj ) );
                             }
                         }
-                        StatsDB.record( context, false, port, clientData.length );
                     }
                 }
             } );
     }
 
+    private static void fanOut( Context context, short port, String phone,
+                                String[] appIDs, byte[] clientData )
+    {
+        // Build each format at most once, whatever the number of apps
+        byte[] envelope = null;
+        String asStr = null;
+        for ( String appID : appIDs ) {
+            try {
+                boolean legacy = PortReg.isLegacy( appID );
+                if ( !legacy && envelope == null ) {
+                    envelope = new Envelope( port, clientData ).toBytes();
+                }
+
+                if ( !legacy
+                     && ProxyService.deliver( appID, phone, envelope ) ) {
+                    // nothing to do: it went over the app's channel
+                } else {
+                    Intent intent = makeRXIntent( appID, legacy )
+                        .putExtra( NBSProxy.EXTRA_PHONE, phone );
+                    if ( legacy ) {
+                        if ( asStr == null ) {
+                            asStr = Base64.encodeToString( clientData,
+                                                           Base64.NO_WRAP );
+                        }
+                        intent.putExtra( Intent.EXTRA_TEXT, asStr )
+                            .putExtra( NBSProxy.EXTRA_PORT, port );
+                    } else {
+                        intent.putExtra( NBSProxy.EXTRA_ENVELOPE, envelope );
+                    }
+                    context.sendBroadcast( intent );
+                }
+            } catch ( android.content.ActivityNotFoundException anfe ) {
+                Log.e( TAG, "ActivityNotFoundException: "
+                       + anfe.getMessage() );
+            }
+        }
+        StatsDB.record( context, false, port, clientData.length );
+    }
+
+    // Must be called once PortReg's loaded, e.g. from inside lookup().
+    // Returns the client messages msg contains, or null if it's unusable.
+    private static List<byte[]> unframe( Context context, short port, byte[] msg )
+    {
+        Wire.Frame frame = Wire.unframe( msg );
+        byte[] result = frame.body;
+        if ( 0 != (frame.flags & Wire.FLAG_DEFLATE) ) {
+            byte[] dict = PortReg.dictFor( context, port );
+            if ( dict == null ) {
+                Log.e( TAG, "no dict to inflate msg on port " + port );
+                result = null;
+            } else {
+                try {
+                    result = Compressor.inflate( frame.body, dict );
+                } catch ( DataFormatException dfe ) {
+                    Log.e( TAG, "unable to inflate msg on port " + port
+                           + ": " + dfe.getMessage() );
+                    result = null;
+                }
+            }
+        }
+
+        List<byte[]> msgs = null;
+        if ( result == null ) {
+            // already logged
+        } else if ( 0 != (frame.flags & Wire.FLAG_PACKED) ) {
+            msgs = Coalescer.unpack( result );
+        } else {
+            msgs = new ArrayList<>();
+            msgs.add( result );
+        }
+        return msgs;
+    }
+
     public static void onAppLaunched( Context context )
     {
         Log.d( TAG, "onAppLaunched()" );
@@ -135,15 +296,19 @@ public class NBSReceiver extends BroadcastReceiver {
         context.sendOrderedBroadcast( intent, null );
     }
 
-    public static Intent makeRXIntent( String appID )
+    public static Intent makeRXIntent( String appID, boolean legacy )
     {
         Intent rxIntent = new Intent()
-            .putExtra( NBSProxy.EXTRA_VERSION,
-                       org.eehouse.android.nbsplib.BuildConfig.NBSP_VERSION )
             .setAction( Intent.ACTION_SEND )
             .setType( "text/nbsdata_rx" )
             .setPackage( appID )
             ;
+        if ( legacy ) {
+            rxIntent.putExtra( NBSProxy.EXTRA_VERSION, NBSProxy.LEGACY_VERSION );
+        } else {
+            rxIntent.putExtra( NBSProxy.EXTRA_PROTO,
+                               org.eehouse.android.nbsplib.BuildConfig.NBSP_PROTO );
+        }
         return rxIntent;
     }
 
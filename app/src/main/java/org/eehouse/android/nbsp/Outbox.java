@@ -0,0 +1,570 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2019 by Eric House (eehouse@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.eehouse.android.nbsp;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.telephony.PhoneStateListener;
+import android.telephony.ServiceState;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eehouse.android.nbsp.ui.MainActivity;
+
+/**
+ * Every PDU we send is written here and stays until SmsManager reports it
+ * sent. One that fails is tried again later, backing off exponentially,
+ * and while the phone has no service nothing is retried at all.
+ *
+ * Writes are cheap for the sender: add() only queues its row, and the
+ * rows added, handed off and removed meanwhile are committed together, in
+ * one transaction, on sHandler's thread. A PDU that's sent and reported
+ * before its row's committed is never written at all. The price is that a
+ * PDU whose row wasn't yet committed when the process died isn't retried.
+ *
+ * Rows live in their own table in StatsDB's database. What's needed to
+ * resend (phone, port and PDU) is in a single blob; only what we query on
+ * gets a column. The message id (see Tracker) rides along so a retried
+ * PDU still counts toward its message's latency.
+ *
+ * A PDU can wait a long while in the Scheduler's queue, so the clock on
+ * its result only starts once the Scheduler hands it to the radio. Until
+ * then its id is in sQueued and drain() leaves it alone.
+ */
+class Outbox {
+    private static final String TAG = Outbox.class.getSimpleName();
+
+    static final String TABLE_NAME = "Outbox";
+
+    private static final String COL_ID = "ID";
+    private static final String COL_ROW = "ROW";
+    private static final String COL_ATTEMPTS = "ATTEMPTS";
+    private static final String COL_NEXT_TRY = "NEXT_TRY";
+
+    // How many rows drain() pulls at a time
+    private static final int BATCH = 16;
+    static final int MAX_ATTEMPTS = 8;
+    private static final long BACKOFF_BASE_MS = 15 * 1000;
+    private static final long BACKOFF_MAX_MS = 30 * 60 * 1000;
+    // If a PDU's sent-status hasn't come back this long after it went to
+    // the radio (or was added, if we were killed before that) assume it
+    // never will and try again
+    private static final long IN_FLIGHT_MS = 10 * 60 * 1000;
+
+    // ids of rows waiting in the Scheduler's queue
+    private static Set<Long> sQueued = new HashSet<>();
+    // Rows are inserted after add() returns their ids, so the ids come
+    // from here rather than from SQLite
+    private static AtomicLong sNextID;
+    // Writes not yet committed, by row id. Guarded by Outbox.class
+    private static Map<Long, Write> sWrites = new LinkedHashMap<>();
+
+    private static volatile long sBackoffBaseMS = BACKOFF_BASE_MS;
+    private static volatile long sBackoffMaxMS = BACKOFF_MAX_MS;
+
+    private static Handler sHandler;
+    private static Context sContext;
+    private static boolean sHaveService = true;
+    private static PhoneStateListener sListener;
+    private static Runnable sDrainer = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+    private static Runnable sWriter = new Runnable() {
+            @Override
+            public void run() {
+                flushWrites();
+            }
+        };
+
+    // What's to become of a row: inserted with values, updated with them,
+    // or deleted
+    private static class Write {
+        boolean insert;
+        boolean delete;
+        ContentValues values = new ContentValues();
+    }
+
+    static void createTable( SQLiteDatabase db )
+    {
+        db.execSQL( "CREATE TABLE " + TABLE_NAME + " ("
+                    + COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + COL_ROW + " BLOB, "
+                    + COL_ATTEMPTS + " INTEGER DEFAULT 0, "
+                    + COL_NEXT_TRY + " INTEGER);" );
+        db.execSQL( "CREATE INDEX " + TABLE_NAME + "_next ON "
+                    + TABLE_NAME + " (" + COL_NEXT_TRY + ");" );
+    }
+
+    /**
+     * Persist a PDU that's about to be handed to the Scheduler. It won't
+     * be retried while the Scheduler has it, nor after unless it fails or
+     * IN_FLIGHT_MS passes without a result.
+     *
+     * @return id to put in the sent-status PendingIntent, or -1 if it
+     * couldn't be stored (in which case it's still worth sending)
+     */
+    static long add( Context context, String phone, short port, int msgID,
+                     byte[] pdu )
+    {
+        init( context );
+        long result = -1;
+        byte[] row = toRow( phone, port, msgID, pdu );
+        if ( row != null ) {
+            result = sNextID.incrementAndGet();
+            setQueued( result, true );
+            ContentValues values = new ContentValues();
+            values.put( COL_ID, result );
+            values.put( COL_ROW, row );
+            values.put( COL_NEXT_TRY, System.currentTimeMillis() + IN_FLIGHT_MS );
+            write( result, values, true );
+        }
+        return result;
+    }
+
+    /**
+     * Called by the Scheduler as it gives a PDU to the radio: from now
+     * it's IN_FLIGHT_MS before the PDU's assumed lost.
+     */
+    static void onHandedOff( Context context, final long id )
+    {
+        init( context );
+        // On drain()'s thread, so it never sees the row unqueued but with
+        // its old time
+        sHandler.post( new Runnable() {
+                @Override
+                public void run() {
+                    ContentValues values = new ContentValues();
+                    values.put( COL_NEXT_TRY, System.currentTimeMillis() + IN_FLIGHT_MS );
+                    write( id, values, false );
+                    setQueued( id, false );
+                }
+            } );
+    }
+
+    /**
+     * Called with the result of a send: drop the row if it went, otherwise
+     * schedule it for another try.
+     *
+     * @param noService true if the failure was for lack of service, in
+     * which case retries wait until it's back
+     */
+    static void onSendResult( Context context, final long id, final int msgID,
+                              final boolean ok, final boolean noService )
+    {
+        init( context );
+        sHandler.post( new Runnable() {
+                @Override
+                public void run() {
+                    if ( ok ) {
+                        remove( id );
+                    } else {
+                        if ( noService && null != sListener ) {
+                            sHaveService = false;
+                            recheckService();
+                        }
+                        retryLater( id, msgID );
+                    }
+                }
+            } );
+    }
+
+    /**
+     * For tests: how long to wait before retrying a failed PDU. The wait
+     * starts at baseMS and doubles each attempt, up to maxMS.
+     */
+    static void setBackoff( long baseMS, long maxMS )
+    {
+        sBackoffBaseMS = baseMS;
+        sBackoffMaxMS = maxMS;
+    }
+
+    /**
+     * For tests: forget everything, thread included, as Robolectric quits
+     * each test's loopers. Writes not yet made are dropped, and the
+     * backoff's back to normal.
+     */
+    static synchronized void reset()
+    {
+        if ( sHandler != null ) {
+            sHandler.getLooper().quit();
+            sHandler = null;
+        }
+        sContext = null;
+        sListener = null;
+        sHaveService = true;
+        sWrites.clear();
+        synchronized ( sQueued ) {
+            sQueued.clear();
+        }
+        setBackoff( BACKOFF_BASE_MS, BACKOFF_MAX_MS );
+    }
+
+    /**
+     * For tests, which under Robolectric must run what's posted to it
+     */
+    static synchronized Looper getLooper()
+    {
+        return sHandler == null ? null : sHandler.getLooper();
+    }
+
+    /**
+     * Pick up whatever's waiting from a previous run. Called at launch.
+     */
+    static void resume( Context context )
+    {
+        init( context );
+        postDrain( 0 );
+    }
+
+    private static synchronized void init( Context context )
+    {
+        if ( sHandler == null ) {
+            sContext = context.getApplicationContext();
+            sNextID = new AtomicLong( maxID() );
+            HandlerThread thread = new HandlerThread( TAG );
+            thread.start();
+            sHandler = new Handler( thread.getLooper() );
+            // PhoneStateListener calls back on the Looper of the thread
+            // that creates it
+            sHandler.post( new Runnable() {
+                    @Override
+                    public void run() {
+                        listenForService();
+                    }
+                } );
+        }
+    }
+
+    private static void listenForService()
+    {
+        TelephonyManager mgr = (TelephonyManager)
+            sContext.getSystemService( Context.TELEPHONY_SERVICE );
+        if ( mgr != null ) {
+            sListener = new PhoneStateListener() {
+                    @Override
+                    public void onServiceStateChanged( ServiceState state ) {
+                        boolean haveService =
+                            ServiceState.STATE_IN_SERVICE == state.getState();
+                        Log.d( TAG, "onServiceStateChanged(): haveService="
+                               + haveService );
+                        if ( haveService && !sHaveService ) {
+                            sHaveService = true;
+                            postDrain( 0 );
+                        } else {
+                            sHaveService = haveService;
+                        }
+                    }
+                };
+            mgr.listen( sListener, PhoneStateListener.LISTEN_SERVICE_STATE );
+        }
+    }
+
+    // The listener only hears about changes, and the phone may think it's
+    // had service all along, in which case nothing would ever clear
+    // sHaveService. Listening afresh gets the current state reported
+    // straight away.
+    private static void recheckService()
+    {
+        TelephonyManager mgr = (TelephonyManager)
+            sContext.getSystemService( Context.TELEPHONY_SERVICE );
+        mgr.listen( sListener, PhoneStateListener.LISTEN_NONE );
+        mgr.listen( sListener, PhoneStateListener.LISTEN_SERVICE_STATE );
+    }
+
+    // The highest id in the table. Read once, as the first add() or
+    // resume() needs it.
+    private static long maxID()
+    {
+        long result = 0;
+        String[] columns = { "MAX(" + COL_ID + ")" };
+        Cursor cursor = StatsDB.getDB( sContext )
+            .query( TABLE_NAME, columns, null, null, null, null, null );
+        if ( cursor.moveToNext() && !cursor.isNull( 0 ) ) {
+            result = cursor.getLong( 0 );
+        }
+        cursor.close();
+        return result;
+    }
+
+    // Queue values to be written to row id when sHandler next gets to it
+    private static synchronized void write( long id, ContentValues values,
+                                            boolean insert )
+    {
+        Write write = sWrites.get( id );
+        if ( write == null ) {
+            write = new Write();
+            sWrites.put( id, write );
+        }
+        if ( write.delete ) {
+            // nothing to do: it's going
+        } else {
+            write.insert = write.insert || insert;
+            write.values.putAll( values );
+        }
+        postWrites();
+    }
+
+    private static synchronized void remove( long id )
+    {
+        Write write = sWrites.get( id );
+        if ( write != null && write.insert ) {
+            // Never written, so nothing to delete
+            sWrites.remove( id );
+        } else {
+            write = new Write();
+            write.delete = true;
+            sWrites.put( id, write );
+            postWrites();
+        }
+    }
+
+    // Must hold lock on Outbox.class. One post covers whatever's queued
+    // before it runs.
+    private static void postWrites()
+    {
+        if ( 1 == sWrites.size() ) {
+            sHandler.post( sWriter );
+        }
+    }
+
+    // Runs on sHandler's thread: commits every queued write in one
+    // transaction. Anything there that reads the table calls this first.
+    private static void flushWrites()
+    {
+        Map<Long, Write> writes;
+        synchronized ( Outbox.class ) {
+            writes = sWrites;
+            sWrites = new LinkedHashMap<>();
+        }
+
+        if ( 0 < writes.size() ) {
+            SQLiteDatabase db = StatsDB.getDB( sContext );
+            long bytes = 0;
+            db.beginTransaction();
+            try {
+                for ( Map.Entry<Long, Write> entry : writes.entrySet() ) {
+                    String[] args = idArgs( entry.getKey() );
+                    Write write = entry.getValue();
+                    if ( write.delete ) {
+                        db.delete( TABLE_NAME, COL_ID + " = ?", args );
+                    } else if ( write.insert ) {
+                        db.insert( TABLE_NAME, null, write.values );
+                    } else {
+                        db.update( TABLE_NAME, write.values, COL_ID + " = ?", args );
+                    }
+                    bytes += sizeOf( write );
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            StatsDB.addWritten( writes.size(), bytes );
+        }
+    }
+
+    // About what a write puts in the table: its id, plus whatever values
+    private static long sizeOf( Write write )
+    {
+        long result = 8;
+        for ( String key : write.values.keySet() ) {
+            Object value = write.values.get( key );
+            result += value instanceof byte[] ? ((byte[])value).length : 8;
+        }
+        return result;
+    }
+
+    private static void retryLater( long id, int msgID )
+    {
+        flushWrites();
+        SQLiteDatabase db = StatsDB.getDB( sContext );
+        String selection = COL_ID + " = ?";
+        String[] selectionArgs = idArgs( id );
+        String[] columns = { COL_ATTEMPTS };
+        Cursor cursor = db.query( TABLE_NAME, columns, selection, selectionArgs,
+                                  null, null, null );
+        int attempts = -1;
+        if ( cursor.moveToNext() ) {
+            attempts = 1 + cursor.getInt( cursor.getColumnIndex( COL_ATTEMPTS ) );
+        }
+        cursor.close();
+
+        if ( attempts < 0 ) {
+            // nothing to do: already gone
+        } else if ( attempts >= MAX_ATTEMPTS ) {
+            Log.e( TAG, "retryLater(" + id + "): giving up after "
+                   + attempts + " attempts" );
+            remove( id );
+            MainActivity.notifySendFailed( sContext );
+            Tracker.onGaveUp( sContext, msgID, "failed after " + attempts + " attempts" );
+        } else {
+            long backoff = Math.min( sBackoffMaxMS,
+                                     sBackoffBaseMS << (attempts - 1) );
+            ContentValues values = new ContentValues();
+            values.put( COL_ATTEMPTS, attempts );
+            values.put( COL_NEXT_TRY, System.currentTimeMillis() + backoff );
+            write( id, values, false );
+            Log.d( TAG, "retryLater(" + id + "): attempt " + attempts
+                   + " in " + backoff + "ms" );
+            // drain() works out when the soonest row's due
+            postDrain( 0 );
+        }
+    }
+
+    // Runs on sHandler's thread. Hands every row that's due to the
+    // Scheduler, BATCH at a time, marking each in flight as it goes. A row
+    // that's due but still in the Scheduler's queue is only pushed back:
+    // it'll get its new time when it's handed off.
+    private static void drain()
+    {
+        if ( !sHaveService ) {
+            Log.d( TAG, "drain(): no service; waiting" );
+        } else {
+            SQLiteDatabase db = StatsDB.getDB( sContext );
+            String[] columns = { COL_ID, COL_ROW };
+            long nextDue = 0;
+            for ( boolean more = true; more; ) {
+                flushWrites();
+                long now = System.currentTimeMillis();
+                Cursor cursor = db.query( TABLE_NAME, columns, COL_NEXT_TRY + " <= ?",
+                                          new String[] { String.valueOf( now ) },
+                                          null, null, COL_NEXT_TRY,
+                                          String.valueOf( BATCH ) );
+                more = cursor.getCount() == BATCH;
+                int indxID = cursor.getColumnIndex( COL_ID );
+                int indxRow = cursor.getColumnIndex( COL_ROW );
+
+                ContentValues values = new ContentValues();
+                values.put( COL_NEXT_TRY, now + IN_FLIGHT_MS );
+                while ( cursor.moveToNext() ) {
+                    long id = cursor.getLong( indxID );
+                    write( id, values, false );
+                    if ( isQueued( id ) ) {
+                        Log.d( TAG, "drain(): " + id + " still queued" );
+                    } else {
+                        resend( id, cursor.getBlob( indxRow ) );
+                    }
+                }
+                cursor.close();
+            }
+            flushWrites();
+
+            // When's the next one due?
+            String[] nextCol = { "MIN(" + COL_NEXT_TRY + ")" };
+            Cursor cursor = db.query( TABLE_NAME, nextCol, null, null, null, null, null );
+            if ( cursor.moveToNext() && !cursor.isNull( 0 ) ) {
+                nextDue = cursor.getLong( 0 );
+            }
+            cursor.close();
+            if ( 0 < nextDue ) {
+                postDrain( Math.max( 0, nextDue - System.currentTimeMillis() ) );
+            }
+        }
+    }
+
+    private static void resend( long id, byte[] row )
+    {
+        try {
+            DataInputStream dis = new DataInputStream( new ByteArrayInputStream( row ) );
+            short port = dis.readShort();
+            int msgID = dis.readInt();
+            String phone = dis.readUTF();
+            byte[] pdu = new byte[dis.readUnsignedByte()];
+            dis.readFully( pdu );
+            Log.d( TAG, "resend(" + id + "): " + pdu.length + " bytes to " + phone );
+            setQueued( id, true );
+            Scheduler.enqueue( sContext, phone, port, pdu, id,
+                               RequestReceiver.makeSentIntent( sContext, id, msgID,
+                                                               pdu.length, port ),
+                               RequestReceiver.makeDeliveryIntent( sContext, msgID,
+                                                                   pdu.length, port ) );
+        } catch ( IOException ioe ) {
+            Log.e( TAG, "resend(" + id + "): bad row; dropping" );
+            remove( id );
+        }
+    }
+
+    private static byte[] toRow( String phone, short port, int msgID, byte[] pdu )
+    {
+        byte[] result = null;
+        try {
+            ByteArrayOutputStream bas = new ByteArrayOutputStream( pdu.length + 32 );
+            DataOutputStream dos = new DataOutputStream( bas );
+            dos.writeShort( port );
+            dos.writeInt( msgID );
+            dos.writeUTF( phone );
+            dos.writeByte( pdu.length ); // never more than Wire.MAX_PDU
+            dos.write( pdu );
+            dos.flush();
+            result = bas.toByteArray();
+        } catch ( IOException ioe ) {
+            Log.e( TAG, "toRow(): " + ioe.getMessage() );
+        }
+        return result;
+    }
+
+    private static String[] idArgs( long id )
+    {
+        return new String[] { String.valueOf( id ) };
+    }
+
+    private static void setQueued( long id, boolean queued )
+    {
+        synchronized ( sQueued ) {
+            if ( queued ) {
+                sQueued.add( id );
+            } else {
+                sQueued.remove( id );
+            }
+        }
+    }
+
+    private static boolean isQueued( long id )
+    {
+        synchronized ( sQueued ) {
+            return sQueued.contains( id );
+        }
+    }
+
+    // Only ever one drain pending: a new one replaces any already posted
+    private static synchronized void postDrain( long delayMS )
+    {
+        sHandler.removeCallbacks( sDrainer );
+        sHandler.postDelayed( sDrainer, delayMS );
+    }
+}
@@ -26,35 +26,78 @@ import android.content.pm.PackageManager;
 import android.util.Log;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import junit.framework.Assert;
 
 public class PortReg {
     private static final String TAG = PortReg.class.getSimpleName();
     private static final String MAP_KEY = TAG + ".map";
+    private static final String LEGACY_KEY = TAG + ".legacy";
+    private static final String DICTS_KEY = TAG + ".dicts";
 
+    // "port:appID" -> token of the last registration processed for it, so
+    // repeats can be skipped without touching the DB thread
+    private static Map<String, Long> sTokens = new ConcurrentHashMap<>();
+
+    /**
+     * @param token identifies the registration's contents (see
+     * nbsplib's Registration), or 0 if the client's too old to send one
+     */
     static void register( final Context context, final short port,
-                          final String appID )
+                          final String appID, final boolean legacy,
+                          final byte[] dict, final long token )
     {
-        onMapLoaded( context, new Runnable() {
-                @Override
-                public void run() {
-                    HashSet<String> appIDs = sMap.get( port );
-                    if ( appIDs == null ) {
-                        appIDs = new HashSet<String>();
-                        sMap.put( port, appIDs );
-                    }
+        final String tokenKey = port + ":" + appID;
+        Long prevToken = sTokens.get( tokenKey );
+        if ( token != 0 && prevToken != null && prevToken == token ) {
+            Log.d( TAG, "register(" + tokenKey + "): unchanged" );
+        } else {
+            onMapLoaded( context, new Runnable() {
+                    @Override
+                    public void run() {
+                        HashSet<String> appIDs = sMap.get( port );
+                        if ( appIDs == null ) {
+                            appIDs = new HashSet<String>();
+                            sMap.put( port, appIDs );
+                        }
+
+                        if ( !appIDs.contains( appID ) ) {
+                            appIDs.add( appID );
+                            StatsDB.put( context, MAP_KEY, sMap );
+                        }
 
-                    if ( !appIDs.contains( appID ) ) {
-                        appIDs.add( appID );
-                        StatsDB.put( context, MAP_KEY, sMap );
+                        boolean changed = legacy ? sLegacy.add( appID )
+                            : sLegacy.remove( appID );
+                        if ( changed ) {
+                            StatsDB.put( context, LEGACY_KEY, sLegacy );
+                        }
+
+                        // Last registration for a port wins
+                        byte[] curDict = sDicts.get( port );
+                        if ( !Arrays.equals( dict, curDict ) ) {
+                            // Copy rather than modify: dictFor() reads from
+                            // other threads
+                            HashMap<Short, byte[]> dicts = new HashMap<>( sDicts );
+                            if ( dict == null ) {
+                                dicts.remove( port );
+                            } else {
+                                dicts.put( port, dict );
+                            }
+                            sDicts = dicts;
+                            StatsDB.put( context, DICTS_KEY, sDicts );
+                        }
+                        if ( token != 0 ) {
+                            sTokens.put( tokenKey, token );
+                        }
                     }
-                }
-            } );
+                } );
+        }
     }
 
     static void unregister( Context context, final short port, String appID )
@@ -92,6 +135,35 @@ public class PortReg {
             } );
     }
 
+    /**
+     * Does appID need data in the pre-Envelope format? Only meaningful from
+     * inside an OnHaveAppIDs callback, i.e. once the map's loaded.
+     */
+    static boolean isLegacy( String appID )
+    {
+        return sLegacy != null && sLegacy.contains( appID );
+    }
+
+    /**
+     * The compression dictionary registered for port, if any. Doesn't block:
+     * if the registrations aren't loaded yet it returns null (meaning "don't
+     * compress this one") and starts loading them.
+     */
+    static byte[] dictFor( Context context, short port )
+    {
+        byte[] result = null;
+        HashMap<Short, byte[]> dicts = sDicts;
+        if ( dicts != null ) {
+            result = dicts.get( port );
+        } else {
+            onMapLoaded( context, new Runnable() {
+                    @Override
+                    public void run() {}
+                } );
+        }
+        return result;
+    }
+
     public static String nameFor( Context context, String appID )
     {
         String result = null;
@@ -105,18 +177,49 @@ public class PortReg {
     }
 
     private static HashMap<Short, HashSet<String>> sMap;
-    private static void onMapLoaded( Context context, final Runnable cbck )
+    private static HashSet<String> sLegacy;
+    private static volatile HashMap<Short, byte[]> sDicts;
+    private static void onMapLoaded( final Context context, final Runnable cbck )
     {
         if ( sMap != null ) {
             cbck.run();
         } else {
+            StatsDB.get( context, DICTS_KEY, new StatsDB.OnHaveSerializable() {
+                    @Override
+                    public void onHaveData( String key, Serializable datum )
+                    {
+                        HashMap<Short, byte[]> dicts = (HashMap<Short, byte[]>)datum;
+                        if ( sDicts == null ) {
+                            sDicts = dicts == null ? new HashMap<Short, byte[]>() : dicts;
+                        }
+                    }
+                } );
+            StatsDB.get( context, LEGACY_KEY, new StatsDB.OnHaveSerializable() {
+                    @Override
+                    public void onHaveData( String key, Serializable datum )
+                    {
+                        if ( sLegacy == null ) {
+                            sLegacy = (HashSet<String>)datum;
+                            if ( sLegacy == null ) {
+                                sLegacy = new HashSet<>();
+                            }
+                        }
+                    }
+                } );
+            // Requests are processed in order, so sLegacy's set by the time
+            // this one comes back
             StatsDB.get( context, MAP_KEY, new StatsDB.OnHaveSerializable() {
                     @Override
                     public void onHaveData( String key, Serializable datum )
                     {
-                        sMap = (HashMap<Short, HashSet<String>>)datum;
+                        // A second caller can get here before the first
+                        // load completes; its copy is stale by then, so
+                        // keep the map the first one may have changed
                         if ( sMap == null ) {
-                            sMap = new HashMap<>();
+                            sMap = (HashMap<Short, HashSet<String>>)datum;
+                            if ( sMap == null ) {
+                                sMap = new HashMap<>();
+                            }
                         }
                         cbck.run();
                     }
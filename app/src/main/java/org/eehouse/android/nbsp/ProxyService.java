@@ -0,0 +1,199 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2019 by Eric House (eehouse@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.eehouse.android.nbsp;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eehouse.android.nbsplib.Envelope;
+import org.eehouse.android.nbsplib.NBSProxy;
+
+/**
+ * What clients bind to when they call NBSProxy.openChannel(). Sends arrive
+ * as Messages instead of broadcasts, and while a client's connected its
+ * incoming data goes back the same way.
+ *
+ * The service is exported so any app can bind to it, so a Message's appID
+ * is only believed if it's a package of the uid that sent it. Otherwise
+ * any app could say hello as another and get its data, or send as it.
+ */
+public class ProxyService extends Service {
+    private static final String TAG = ProxyService.class.getSimpleName();
+
+    // appID -> where to send that app's data
+    private static Map<String, Messenger> sClients = new ConcurrentHashMap<>();
+
+    private Handler mHandler;
+    private Binder mBinder;
+    private Messenger mMessenger;
+
+    @Override
+    public void onCreate()
+    {
+        super.onCreate();
+        mHandler = new Handler() {
+                @Override
+                public void handleMessage( Message wrapper ) {
+                    handleFromClient( wrapper.arg1, (Message)wrapper.obj );
+                }
+            };
+        mBinder = new ClientBinder();
+        mMessenger = new Messenger( mBinder );
+    }
+
+    @Override
+    public IBinder onBind( Intent intent )
+    {
+        return mBinder;
+    }
+
+    /**
+     * What clients' Messengers talk to. A Messenger's own Handler never
+     * learns who sent a Message (Message.sendingUid isn't public before
+     * Q), so this takes the binder call itself, where the caller's uid is
+     * known, and unpacks the Message as IMessenger.Stub would. Each goes
+     * to mHandler wrapped in one that carries the uid.
+     */
+    private class ClientBinder extends Binder {
+        private static final String DESCRIPTOR = "android.os.IMessenger";
+        private static final int TRANSACTION_SEND = FIRST_CALL_TRANSACTION;
+
+        @Override
+        protected boolean onTransact( int code, Parcel data, Parcel reply,
+                                      int flags )
+            throws RemoteException
+        {
+            boolean result;
+            if ( code == TRANSACTION_SEND ) {
+                data.enforceInterface( DESCRIPTOR );
+                if ( 0 != data.readInt() ) {
+                    Message msg = Message.CREATOR.createFromParcel( data );
+                    mHandler.obtainMessage( 0, Binder.getCallingUid(), 0, msg )
+                        .sendToTarget();
+                }
+                result = true;
+            } else {
+                result = super.onTransact( code, data, reply, flags );
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @return false if appID isn't connected, in which case caller should
+     * broadcast instead
+     */
+    static boolean deliver( String appID, String phone, byte[] envelope )
+    {
+        boolean delivered = false;
+        Messenger client = sClients.get( appID );
+        if ( client != null ) {
+            Message msg = Message.obtain( null, NBSProxy.MSG_DATA );
+            Bundle bundle = new Bundle();
+            bundle.putString( NBSProxy.EXTRA_PHONE, phone );
+            bundle.putByteArray( NBSProxy.EXTRA_ENVELOPE, envelope );
+            msg.setData( bundle );
+            try {
+                client.send( msg );
+                delivered = true;
+            } catch ( RemoteException re ) {
+                // Most likely the client's process died without saying bye
+                Log.e( TAG, "deliver(" + appID + "): " + re.getMessage() );
+                sClients.remove( appID );
+            }
+        }
+        return delivered;
+    }
+
+    private void handleFromClient( int uid, Message msg )
+    {
+        Bundle bundle = msg.getData();
+        String appID = bundle.getString( NBSProxy.EXTRA_APPID );
+        int proto = bundle.getInt( NBSProxy.EXTRA_PROTO, 0 );
+        if ( !isPackageOf( uid, appID ) ) {
+            Log.e( TAG, "handleFromClient(): uid " + uid + " isn't " + appID );
+        } else if ( (proto >> 8) != (org.eehouse.android.nbsplib.BuildConfig.NBSP_PROTO >> 8) ) {
+            // Same test NBSProxy.versionOk() does: major and minor must
+            // match. Don't answer, so client keeps using broadcasts, which
+            // will report the mismatch
+            Log.e( TAG, "handleFromClient(): dropping msg from " + appID );
+        } else {
+            switch ( msg.what ) {
+            case NBSProxy.MSG_HELLO:
+                Log.d( TAG, "hello from " + appID );
+                if ( msg.replyTo == null ) {
+                    Log.e( TAG, "handleFromClient(): hello without replyTo" );
+                } else {
+                    sClients.put( appID, msg.replyTo );
+                    try {
+                        // replyTo is what the client will send to from now on
+                        Message reply = Message.obtain( null, NBSProxy.MSG_HELLO );
+                        reply.replyTo = mMessenger;
+                        msg.replyTo.send( reply );
+                    } catch ( RemoteException re ) {
+                        Log.e( TAG, "handleFromClient(): " + re.getMessage() );
+                        sClients.remove( appID );
+                    }
+                }
+                break;
+            case NBSProxy.MSG_BYE:
+                Log.d( TAG, "bye from " + appID );
+                sClients.remove( appID );
+                break;
+            case NBSProxy.MSG_SEND:
+                String phone = bundle.getString( NBSProxy.EXTRA_PHONE );
+                Envelope envelope = Envelope
+                    .fromBytes( bundle.getByteArray( NBSProxy.EXTRA_ENVELOPE ) );
+                if ( phone == null || envelope == null ) {
+                    Log.e( TAG, "handleFromClient(): malformed send" );
+                } else {
+                    RequestReceiver.send( this, appID, phone, envelope,
+                                          bundle.getInt( NBSProxy.EXTRA_COALESCE_MS, 0 ) );
+                }
+                break;
+            default:
+                Log.e( TAG, "handleFromClient(): unexpected what: " + msg.what );
+            }
+        }
+    }
+
+    private boolean isPackageOf( int uid, String appID )
+    {
+        boolean result = false;
+        if ( appID != null ) {
+            String[] packages = getPackageManager().getPackagesForUid( uid );
+            result = packages != null && Arrays.asList( packages ).contains( appID );
+        }
+        return result;
+    }
+}
@@ -0,0 +1,149 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2019 by Eric House (eehouse@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.eehouse.android.nbsp;
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the pieces of partly-received messages until the rest show up. Lost
+ * pieces mean some never will, so entries time out, and the whole thing is
+ * capped in size: when it's over, least-recently-touched entries go first.
+ */
+class Reassembler {
+    private static final String TAG = Reassembler.class.getSimpleName();
+
+    private final int mMaxBytes;
+    private final long mTimeoutMS;
+    private int mCurBytes;
+
+    // accessOrder == true, so iteration starts with the least-recently
+    // touched, which is also the one that's been waiting longest for its
+    // next piece.
+    private LinkedHashMap<String, Partial> mPartials =
+        new LinkedHashMap<>( 16, 0.75f, true );
+
+    private static class Partial {
+        byte[][] parts;
+        int nHave;
+        int nBytes;
+        long lastTouched;
+        Partial( int count ) { parts = new byte[count][]; }
+    }
+
+    Reassembler( int maxBytes, long timeoutMS )
+    {
+        mMaxBytes = maxBytes;
+        mTimeoutMS = timeoutMS;
+    }
+
+    /**
+     * @return the whole message, in order, if part was the last piece
+     * missing. Otherwise null.
+     */
+    synchronized byte[] add( String key, int index, int count, byte[] part )
+    {
+        byte[] result = null;
+        long now = System.currentTimeMillis();
+        expire( now );
+
+        // Check before touching mPartials, so a bad piece can't leave an
+        // empty entry behind or replace a good one
+        Partial partial = null;
+        if ( index < 0 || index >= count ) {
+            Log.e( TAG, "add(" + key + "): bad index " + index + " of " + count );
+        } else {
+            partial = mPartials.get( key );
+            if ( partial != null && partial.parts.length != count ) {
+                Log.e( TAG, "add(" + key + "): count changed; dropping old parts" );
+                remove( key );
+                partial = null;
+            }
+            if ( partial == null ) {
+                partial = new Partial( count );
+                mPartials.put( key, partial );
+            }
+        }
+
+        if ( partial == null ) {
+            // nothing to do: already logged
+        } else if ( partial.parts[index] != null ) {
+            Log.d( TAG, "add(" + key + "): dropping dup of part " + index );
+        } else {
+            partial.parts[index] = part;
+            ++partial.nHave;
+            partial.nBytes += part.length;
+            mCurBytes += part.length;
+            partial.lastTouched = now;
+
+            if ( partial.nHave == count ) {
+                remove( key );
+                result = new byte[partial.nBytes];
+                int offset = 0;
+                for ( byte[] bytes : partial.parts ) {
+                    System.arraycopy( bytes, 0, result, offset, bytes.length );
+                    offset += bytes.length;
+                }
+            } else {
+                trim();
+            }
+        }
+        return result;
+    }
+
+    synchronized int size() { return mPartials.size(); }
+
+    private void remove( String key )
+    {
+        Partial partial = mPartials.remove( key );
+        if ( partial != null ) {
+            mCurBytes -= partial.nBytes;
+        }
+    }
+
+    private void expire( long now )
+    {
+        Iterator<Map.Entry<String, Partial>> iter = mPartials.entrySet().iterator();
+        while ( iter.hasNext() ) {
+            Map.Entry<String, Partial> entry = iter.next();
+            Partial partial = entry.getValue();
+            if ( partial.lastTouched + mTimeoutMS > now ) {
+                break;          // the rest are newer
+            }
+            Log.d( TAG, "expire(): giving up on " + entry.getKey() );
+            mCurBytes -= partial.nBytes;
+            iter.remove();
+        }
+    }
+
+    private void trim()
+    {
+        Iterator<Map.Entry<String, Partial>> iter = mPartials.entrySet().iterator();
+        while ( mCurBytes > mMaxBytes && iter.hasNext() ) {
+            Map.Entry<String, Partial> entry = iter.next();
+            Log.d( TAG, "trim(): evicting " + entry.getKey() );
+            mCurBytes -= entry.getValue().nBytes;
+            iter.remove();
+        }
+    }
+}
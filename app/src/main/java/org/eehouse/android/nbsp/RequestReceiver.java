@@ -28,7 +28,6 @@ import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
-import android.telephony.SmsManager;
 import android.telephony.SmsMessage;
 import android.util.Base64;
 import android.util.Log;
@@ -38,7 +37,9 @@ import java.io.IOException;
 
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.eehouse.android.nbsplib.Envelope;
 import org.eehouse.android.nbsplib.NBSProxy;
 import org.eehouse.android.nbsp.ui.MainActivity;
 
@@ -52,18 +53,23 @@ public class RequestReceiver extends BroadcastReceiver {
              && Intent.ACTION_SEND.equals(intent.getAction())
              && "text/nbsdata_tx".equals( intent.getType() ) ) {
 
-            int versOk = NBSProxy.versionOk( intent );
+            // Clients built against the previous library are still ok
+            boolean legacy = NBSProxy.isLegacy( intent );
+            int versOk = legacy ? 0 : NBSProxy.versionOk( intent );
             if ( versOk == 0 ) {
                 NBSProxy.CTRL cmd = NBSProxy.CTRL
                     .values()[intent.getIntExtra( NBSProxy.EXTRA_CMD, -1 ) ];
                 Log.d( TAG, "onReceive() got cmd: " + cmd );
                 switch ( cmd ) {
                 case REG:
-                    handleReg( context, intent );
-                    sendRegResponse( context, intent );
+                    handleReg( context, intent, legacy );
+                    sendRegResponse( context, intent, legacy );
                     break;
                 case SEND:
-                    handleSend( context, intent );
+                    handleSend( context, intent, legacy );
+                    break;
+                case SEND_BATCH:
+                    handleSendBatch( context, intent );
                     break;
                 }
             } else {
@@ -75,15 +81,17 @@ public class RequestReceiver extends BroadcastReceiver {
         }
     }
 
-    private void handleReg( Context context, Intent intent )
+    private void handleReg( Context context, Intent intent, boolean legacy )
     {
         short port = intent.getShortExtra( NBSProxy.EXTRA_PORT, (short)-1 );
         String appID = intent.getStringExtra( NBSProxy.EXTRA_APPID );
-        Log.d( TAG, "handleReg(" + port + ", " + appID + ")");
-        PortReg.register( context, port, appID );
+        byte[] dict = intent.getByteArrayExtra( NBSProxy.EXTRA_DICT );
+        long token = intent.getLongExtra( NBSProxy.EXTRA_REG_TOKEN, 0 );
+        Log.d( TAG, "handleReg(" + port + ", " + appID + ", legacy=" + legacy + ")");
+        PortReg.register( context, port, appID, legacy, dict, token );
     }
 
-    private boolean haveSendPermission( Context context )
+    private static boolean haveSendPermission( Context context )
     {
         String perm = Manifest.permission.SEND_SMS;
         boolean result = (ContextCompat.checkSelfPermission( context, perm )
@@ -92,71 +100,315 @@ public class RequestReceiver extends BroadcastReceiver {
         return result;
     }
     
-    private void handleSend( Context context, Intent intent )
+    // Checks that need doing once per intent, however many messages it
+    // carries.
+    private static boolean canSend( Context context, short port )
     {
-        short port = intent.getShortExtra( NBSProxy.EXTRA_PORT, (short)-1 );
+        boolean result = false;
         if ( ! haveSendPermission( context ) ) {
             MainActivity.notifyNoPermissions( context, port );
         } else if ( !NBSProxy.isGSMPhone( context ) ) {
             MainActivity.notifyNotGSM( context );
         } else {
-            try {
-                String phone = intent.getStringExtra( NBSProxy.EXTRA_PHONE );
-                String text = intent.getStringExtra( Intent.EXTRA_TEXT );
-                byte[] data = Base64.decode( text, Base64.NO_WRAP );
-                final int dataLen = data.length;
-
-                SmsManager mgr = SmsManager.getDefault();
-                PendingIntent sent = makeStatusIntent( context, R.string.msg_sent,
-                                                       dataLen, port );
-                PendingIntent delivery = makeStatusIntent( context, R.string.msg_delivered,
-                                                           dataLen, port );
-                mgr.sendDataMessage( phone, null, port, data, sent, delivery );
-                Log.d( TAG, "sent " + data.length + " bytes to port "
-                       + port + " on " + phone );
-
-                StatsDB.record( context, true, port, data.length );
-            } catch ( Exception ex ) {
-                Log.e( TAG, "handleSend() got ex: " + ex.getMessage() );
+            result = true;
+        }
+        return result;
+    }
+
+    private void handleSend( Context context, Intent intent, boolean legacy )
+    {
+        Envelope envelope = null;
+        if ( legacy ) {
+            short port = intent.getShortExtra( NBSProxy.EXTRA_PORT, (short)-1 );
+            String text = intent.getStringExtra( Intent.EXTRA_TEXT );
+            if ( text != null ) {
+                envelope = new Envelope( port, Base64.decode( text, Base64.NO_WRAP ) );
+            }
+        } else {
+            envelope = Envelope
+                .fromBytes( intent.getByteArrayExtra( NBSProxy.EXTRA_ENVELOPE ) );
+        }
+
+        if ( envelope == null ) {
+            Log.e( TAG, "handleSend(): no data" );
+        } else {
+            String phone = intent.getStringExtra( NBSProxy.EXTRA_PHONE );
+            int coalesceMS = intent.getIntExtra( NBSProxy.EXTRA_COALESCE_MS, 0 );
+            // Legacy clients wouldn't understand a queue report
+            String appID = legacy ? null
+                : intent.getStringExtra( NBSProxy.EXTRA_APPID );
+            send( context, appID, phone, envelope, coalesceMS );
+        }
+    }
+
+    // Also used by ProxyService, for clients that have bound to it. appID,
+    // if non-null, is told if the message has to wait for the Scheduler,
+    // and, if the envelope asks, what becomes of it.
+    static void send( Context context, String appID, String phone,
+                      Envelope envelope, int coalesceMS )
+    {
+        short port = envelope.getPort();
+        byte[] data = envelope.getData();
+        String resultsTo = envelope.wantsResults() ? appID : null;
+        if ( !canSend( context, port ) ) {
+            if ( resultsTo != null ) {
+                sendResult( context, resultsTo, envelope.getMsgID(),
+                            NBSProxy.RESULT.FAILED, "unable to send" );
+            }
+        } else {
+            // Results need a message to map to a single send, so those
+            // wanting them aren't coalesced
+            boolean waiting = false;
+            if ( 0 < coalesceMS && resultsTo == null ) {
+                Coalescer.add( context, phone, port, data, coalesceMS );
+            } else {
+                waiting = sendNow( context, phone, port, data, 0, resultsTo,
+                                   envelope.getMsgID() );
+            }
+            if ( waiting ) {
+                reportQueue( context, appID, port );
+            }
+        }
+    }
+
+    // Caller's already checked canSend()
+    static void sendNow( Context context, String phone, short port, byte[] data,
+                         int flags )
+    {
+        sendNow( context, phone, port, data, flags, null, 0 );
+    }
+
+    // Returns true if the Scheduler's holding it back
+    static boolean sendNow( Context context, String phone, short port,
+                            byte[] data, int flags, String resultsTo,
+                            int clientMsgID )
+    {
+        boolean result = false;
+        try {
+            result = sendData( context, phone, port, data, flags, resultsTo,
+                               clientMsgID );
+        } catch ( Exception ex ) {
+            Log.e( TAG, "sendNow() got ex: " + ex.getMessage() );
+            MainActivity.notifySendFailed( context );
+            if ( resultsTo != null ) {
+                sendResult( context, resultsTo, clientMsgID,
+                            NBSProxy.RESULT.FAILED, ex.getMessage() );
+            }
+        }
+        return result;
+    }
+
+    // The lengths come from another app: they must carve total up exactly
+    private static boolean lensFit( int[] lens, int total )
+    {
+        boolean result = true;
+        long sum = 0;
+        for ( int ii = 0; result && ii < lens.length; ++ii ) {
+            result = 0 <= lens[ii];
+            sum += lens[ii];
+        }
+        return result && sum == total;
+    }
+
+    private void handleSendBatch( Context context, Intent intent )
+    {
+        String[] phones = intent.getStringArrayExtra( NBSProxy.EXTRA_PHONES );
+        int[] lens = intent.getIntArrayExtra( NBSProxy.EXTRA_LENS );
+        int[] coalesceMSs = intent.getIntArrayExtra( NBSProxy.EXTRA_COALESCE_MS );
+        byte[] data = intent.getByteArrayExtra( NBSProxy.EXTRA_DATA );
+        Envelope[] envelopes = null;
+        if ( phones != null && lens != null && data != null
+             && phones.length == lens.length && lensFit( lens, data.length ) ) {
+            envelopes = new Envelope[lens.length];
+            int offset = 0;
+            for ( int ii = 0; envelopes != null && ii < lens.length; ++ii ) {
+                envelopes[ii] = Envelope
+                    .fromBytes( Arrays.copyOfRange( data, offset, offset + lens[ii] ) );
+                offset += lens[ii];
+                if ( envelopes[ii] == null ) {
+                    envelopes = null;
+                }
+            }
+        }
+
+        if ( envelopes == null ) {
+            Log.e( TAG, "handleSendBatch(): malformed intent" );
+        } else if ( 0 < envelopes.length && canSend( context, envelopes[0].getPort() ) ) {
+            boolean failed = false;
+            boolean waiting = false;
+            for ( int ii = 0; ii < phones.length; ++ii ) {
+                try {
+                    short port = envelopes[ii].getPort();
+                    byte[] msgData = envelopes[ii].getData();
+                    int coalesceMS = coalesceMSs != null && ii < coalesceMSs.length
+                        ? coalesceMSs[ii] : 0;
+                    if ( 0 < coalesceMS ) {
+                        Coalescer.add( context, phones[ii], port, msgData, coalesceMS );
+                    } else {
+                        if ( sendData( context, phones[ii], port, msgData, 0, null, 0 ) ) {
+                            waiting = true;
+                        }
+                    }
+                } catch ( Exception ex ) {
+                    Log.e( TAG, "handleSendBatch() got ex: " + ex.getMessage() );
+                    failed = true;
+                }
+            }
+            Log.d( TAG, "handleSendBatch(): handled " + phones.length + " msgs" );
+            if ( failed ) {
                 MainActivity.notifySendFailed( context );
             }
+            if ( waiting ) {
+                reportQueue( context, intent.getStringExtra( NBSProxy.EXTRA_APPID ),
+                             envelopes[0].getPort() );
+            }
         }
     }
 
+    // Returns true if any of its PDUs has to wait for the Scheduler
+    private static boolean sendData( Context context, String phone, short port,
+                                     byte[] data, int flags, String resultsTo,
+                                     int clientMsgID )
+    {
+        boolean result = false;
+        byte[] framed = null;
+        byte[] dict = PortReg.dictFor( context, port );
+        if ( dict != null ) {
+            byte[] deflated = Wire.frame( Compressor.deflate( data, dict ),
+                                          flags | Wire.FLAG_DEFLATE );
+            // Only worth it if it saves something
+            if ( deflated.length < data.length ) {
+                framed = deflated;
+            }
+            StatsDB.recordCompression( context, port, data.length,
+                                       null == framed ? data.length : framed.length );
+        }
+        if ( framed == null ) {
+            framed = Wire.frame( data, flags );
+        }
+
+        // Anything too big for one PDU goes in pieces. If they're going
+        // by SMS each is saved in the Outbox until it's known to have been
+        // sent, and waits its turn with the Scheduler
+        Transport transport = Transport.forPhone( context, phone );
+        byte[][] pdus = Wire.split( framed );
+        int msgID = Tracker.start( port, pdus.length, resultsTo, clientMsgID );
+        for ( byte[] pdu : pdus ) {
+            final int dataLen = pdu.length;
+            long outboxID = transport.isRadio()
+                ? Outbox.add( context, phone, port, msgID, pdu ) : -1;
+            PendingIntent sent = makeSentIntent( context, outboxID, msgID,
+                                                 dataLen, port );
+            PendingIntent delivery = makeDeliveryIntent( context, msgID, dataLen, port );
+            if ( transport.isRadio() ) {
+                if ( Scheduler.enqueue( context, phone, port, pdu, outboxID,
+                                        sent, delivery ) ) {
+                    result = true;
+                }
+            } else {
+                transport.send( context, phone, port, pdu, sent, delivery );
+            }
+        }
+        Log.d( TAG, "queued " + data.length + " bytes to port "
+               + port + " on " + phone );
+
+        StatsDB.record( context, true, port, data.length );
+        return result;
+    }
+
+    // If sends are being held back to stay under the platform's rate limit,
+    // let the client know how far behind we are so it can pace itself.
+    private static void reportQueue( Context context, String appID, short port )
+    {
+        int depth = Scheduler.getQueueDepth();
+        if ( appID != null ) {
+            Intent intent = NBSReceiver.makeRXIntent( appID, false )
+                .putExtra( NBSProxy.EXTRA_PORT, port )
+                .putExtra( NBSProxy.EXTRA_QUEUE_DEPTH, depth )
+                .putExtra( NBSProxy.EXTRA_QUEUE_WAIT, Scheduler.getEstimatedWait() )
+                ;
+            context.sendBroadcast( intent );
+        }
+    }
+
+    // Tell a client that used NBSProxy.sendAsync() what happened to its
+    // message
+    static void sendResult( Context context, String appID, int clientMsgID,
+                            NBSProxy.RESULT result, String reason )
+    {
+        Log.d( TAG, "sendResult(" + appID + ", " + clientMsgID + "): " + result );
+        Intent intent = NBSReceiver.makeRXIntent( appID, false )
+            .putExtra( NBSProxy.EXTRA_MSG_ID, clientMsgID )
+            .putExtra( NBSProxy.EXTRA_RESULT, result.ordinal() )
+            .putExtra( NBSProxy.EXTRA_ERROR_MSG, reason )
+            ;
+        context.sendBroadcast( intent );
+    }
+
     // If this is about version mistmatch, any intent will suffice because the
     // library checks version on its end.
     private void sendErrorResponse( Context context, Intent intent, String msg )
     {
         String appID = intent.getStringExtra( NBSProxy.EXTRA_APPID );
-        Intent errIntent = NBSReceiver.makeRXIntent( appID )
+        Intent errIntent = NBSReceiver.makeRXIntent( appID, false )
             .putExtra( NBSProxy.EXTRA_ERROR_MSG, msg )
             ;
         context.sendBroadcast( errIntent );
     }
 
-    private void sendRegResponse( Context context, Intent intent )
+    private void sendRegResponse( Context context, Intent intent, boolean legacy )
     {
         long regTime = intent.getLongExtra( NBSProxy.EXTRA_REGTIME, -1 );
         long respTime = System.currentTimeMillis();
         Log.d( TAG, "sendPong(): receipt took " + (respTime - regTime) + "ms");
 
         String appID = intent.getStringExtra( NBSProxy.EXTRA_APPID );
-        Intent pongIntent = NBSReceiver.makeRXIntent( appID )
+        Intent pongIntent = NBSReceiver.makeRXIntent( appID, legacy )
+            .putExtra( NBSProxy.EXTRA_PORT,
+                       intent.getShortExtra( NBSProxy.EXTRA_PORT, (short)-1 ) )
+            .putExtra( NBSProxy.EXTRA_REG_TOKEN,
+                       intent.getLongExtra( NBSProxy.EXTRA_REG_TOKEN, 0 ) )
             .putExtra( NBSProxy.EXTRA_REGTIME, regTime )
             .putExtra( NBSProxy.EXTRA_REGRESPTIME, respTime )
             ;
         context.sendBroadcast( pongIntent );
     }
 
-    private int mNextID = new Random().nextInt();
+    // PendingIntents differing only in extras are the same PendingIntent,
+    // so each needs its own request code. Sends happen on several threads.
+    private static AtomicInteger sNextRequestCode =
+        new AtomicInteger( new Random().nextInt() );
 
-    private PendingIntent makeStatusIntent( Context context, int msgID,
-                                            int len, short port )
+    // Also used by Outbox for retries
+    static PendingIntent makeSentIntent( Context context, long outboxID,
+                                         int msgID, int len, short port )
     {
-        Intent intent = new Intent( context.getString( msgID ) )
+        Intent intent = makeStatusIntent( context, R.string.msg_sent, msgID, len, port )
+            .putExtra( SendStatusReceiver.EXTRA_OUTBOX_ID, outboxID )
+            ;
+        return PendingIntent.getBroadcast( context, sNextRequestCode.incrementAndGet(),
+                                           intent, 0 );
+    }
+
+    static PendingIntent makeDeliveryIntent( Context context, int msgID,
+                                             int len, short port )
+    {
+        Intent intent = makeStatusIntent( context, R.string.msg_delivered,
+                                          msgID, len, port );
+        return PendingIntent.getBroadcast( context, sNextRequestCode.incrementAndGet(),
+                                           intent, 0 );
+                                           // PendingIntent.FLAG_UPDATE_CURRENT );
+    }
+
+    // Explicit, so results arrive even if we're not running when they come
+    private static Intent makeStatusIntent( Context context, int actionID,
+                                            int msgID, int len, short port )
+    {
+        Intent intent = new Intent( context.getString( actionID ) )
+            .setClass( context, SendStatusReceiver.class )
+            .putExtra( SendStatusReceiver.EXTRA_MSG_ID, msgID )
             .putExtra( NBSProxy.EXTRA_PORT, port )
             .putExtra( NBSProxy.EXTRA_DATALEN, len );
-        return PendingIntent.getBroadcast( context, ++mNextID, intent, 0 );
-                                           // PendingIntent.FLAG_UPDATE_CURRENT );
+        return intent;
     }
 }
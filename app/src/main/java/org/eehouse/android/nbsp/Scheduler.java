@@ -0,0 +1,223 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2019 by Eric House (eehouse@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.eehouse.android.nbsp;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+import org.eehouse.android.nbsp.ui.MainActivity;
+
+/**
+ * Sits between us and SmsManager so we never send fast enough to trip
+ * Android's SMS rate limit, which by default allows 30 messages a minute
+ * per app and beyond that stops everything to ask the user for
+ * permission. Instead PDUs wait in a queue and go out as a token bucket
+ * allows.
+ *
+ * Over any window of length W a token bucket admits at most BURST + W/MS_PER_TOKEN,
+ * so with a burst of 10 and one token every 3 seconds, the worst minute
+ * sends 30.
+ */
+class Scheduler {
+    private static final String TAG = Scheduler.class.getSimpleName();
+
+    private static final int BURST = 10;
+    private static final long MS_PER_TOKEN = 3 * 1000;
+
+    private static ArrayDeque<Job> sQueue = new ArrayDeque<>();
+    private static int sBurst = BURST;
+    private static long sMsPerToken = MS_PER_TOKEN;
+    private static double sTokens = BURST;
+    private static long sLastRefill = System.currentTimeMillis();
+    private static Handler sHandler;
+    private static Runnable sDrainer = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+    private static class Job {
+        Context context;
+        String phone;
+        short port;
+        byte[] pdu;
+        long outboxID;
+        PendingIntent sent;
+        PendingIntent delivery;
+        Job( Context context, String phone, short port, byte[] pdu,
+             long outboxID, PendingIntent sent, PendingIntent delivery )
+        {
+            this.context = context;
+            this.phone = phone;
+            this.port = port;
+            this.pdu = pdu;
+            this.outboxID = outboxID;
+            this.sent = sent;
+            this.delivery = delivery;
+        }
+    }
+
+    /**
+     * Arrange for one PDU to be handed to SmsManager.sendDataMessage(),
+     * now if the rate limit allows and otherwise as soon as it does.
+     *
+     * @param outboxID its Outbox row, told when it's handed off, or -1
+     *
+     * @return true if it has to wait: there's no token for it once
+     * everything ahead of it has taken one
+     */
+    static boolean enqueue( Context context, String phone, short port, byte[] pdu,
+                            long outboxID, PendingIntent sent,
+                            PendingIntent delivery )
+    {
+        boolean result;
+        synchronized ( Scheduler.class ) {
+            refill( System.currentTimeMillis() );
+            result = sTokens < sQueue.size() + 1;
+            sQueue.add( new Job( context.getApplicationContext(), phone, port,
+                                 pdu, outboxID, sent, delivery ) );
+        }
+        postDrain( 0 );
+        return result;
+    }
+
+    /**
+     * For tests: a bucket of burst tokens, refilled one every msPerToken
+     * ms. Starts full.
+     */
+    static synchronized void setLimits( int burst, long msPerToken )
+    {
+        sBurst = burst;
+        sMsPerToken = Math.max( 1, msPerToken );
+        sTokens = burst;
+        sLastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * For tests: drop whatever's queued and the thread, as Robolectric
+     * quits each test's loopers, and restore the usual limits.
+     */
+    static synchronized void reset()
+    {
+        if ( sHandler != null ) {
+            sHandler.getLooper().quit();
+            sHandler = null;
+        }
+        sQueue.clear();
+        setLimits( BURST, MS_PER_TOKEN );
+    }
+
+    /**
+     * For tests, which under Robolectric must run what's posted to it
+     */
+    static synchronized Looper getLooper()
+    {
+        return sHandler == null ? null : sHandler.getLooper();
+    }
+
+    /**
+     * @return number of PDUs waiting to be sent
+     */
+    static synchronized int getQueueDepth()
+    {
+        return sQueue.size();
+    }
+
+    /**
+     * @return how long, in ms, before a PDU enqueued now would be sent
+     */
+    static synchronized long getEstimatedWait()
+    {
+        refill( System.currentTimeMillis() );
+        // Everybody ahead needs a token, as does the newcomer
+        double needed = sQueue.size() + 1 - sTokens;
+        return needed <= 0 ? 0 : (long)Math.ceil( needed * sMsPerToken );
+    }
+
+    private static void drain()
+    {
+        for ( ; ; ) {
+            Job job;
+            long waitMS = 0;
+            synchronized ( Scheduler.class ) {
+                refill( System.currentTimeMillis() );
+                job = sQueue.peek();
+                if ( job == null ) {
+                    break;
+                } else if ( sTokens >= 1 ) {
+                    sTokens -= 1;
+                    sQueue.remove();
+                } else {
+                    waitMS = (long)Math.ceil( (1 - sTokens) * sMsPerToken );
+                    job = null;
+                }
+            }
+
+            if ( job == null ) {
+                Log.d( TAG, "drain(): " + getQueueDepth() + " waiting; next in "
+                       + waitMS + "ms" );
+                postDrain( waitMS );
+                break;
+            }
+            send( job );
+        }
+    }
+
+    private static void send( Job job )
+    {
+        try {
+            Transport.getRadio().send( job.context, job.phone, job.port, job.pdu,
+                                       job.sent, job.delivery );
+        } catch ( Exception ex ) {
+            Log.e( TAG, "send() got ex: " + ex.getMessage() );
+            MainActivity.notifySendFailed( job.context );
+        }
+        // Even if it threw: the Outbox will try again once it's waited
+        if ( 0 <= job.outboxID ) {
+            Outbox.onHandedOff( job.context, job.outboxID );
+        }
+    }
+
+    // Must hold lock on Scheduler.class
+    private static void refill( long now )
+    {
+        sTokens = Math.min( sBurst, sTokens + (double)(now - sLastRefill) / sMsPerToken );
+        sLastRefill = now;
+    }
+
+    // Only ever one drain pending: a new one replaces any already posted
+    private static synchronized void postDrain( long delayMS )
+    {
+        if ( sHandler == null ) {
+            HandlerThread thread = new HandlerThread( TAG );
+            thread.start();
+            sHandler = new Handler( thread.getLooper() );
+        }
+        sHandler.removeCallbacks( sDrainer );
+        sHandler.postDelayed( sDrainer, delayMS );
+    }
+}
@@ -0,0 +1,69 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2019 by Eric House (eehouse@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.eehouse.android.nbsp;
+
+import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.telephony.SmsManager;
+import android.util.Log;
+
+import org.eehouse.android.nbsplib.NBSProxy;
+
+/**
+ * Receives the PendingIntents RequestReceiver passes to sendDataMessage(),
+ * and tells the Outbox how each send went and the Tracker when each PDU
+ * was sent and delivered.
+ */
+public class SendStatusReceiver extends BroadcastReceiver {
+    private static final String TAG = SendStatusReceiver.class.getSimpleName();
+
+    static final String EXTRA_OUTBOX_ID = TAG + ".outboxID";
+    static final String EXTRA_MSG_ID = TAG + ".msgID";
+
+    @Override
+    public void onReceive( Context context, Intent intent )
+    {
+        String action = intent.getAction();
+        int resultCode = getResultCode();
+        boolean success = Activity.RESULT_OK == resultCode;
+        short port = intent.getShortExtra( NBSProxy.EXTRA_PORT, (short)-1 );
+        Log.d( TAG, "notified of nbs send progress: action: " + action
+               + "; port: " + port + "; result: " + resultCode );
+
+        int msgID = intent.getIntExtra( EXTRA_MSG_ID, 0 );
+        if ( context.getString( R.string.msg_sent ).equals( action ) ) {
+            if ( success ) {
+                Tracker.onSent( context, msgID );
+            } else {
+                Tracker.onSendFailed( context, msgID );
+            }
+            long outboxID = intent.getLongExtra( EXTRA_OUTBOX_ID, -1 );
+            if ( outboxID != -1 ) {
+                boolean noService = SmsManager.RESULT_ERROR_NO_SERVICE == resultCode
+                    || SmsManager.RESULT_ERROR_RADIO_OFF == resultCode;
+                Outbox.onSendResult( context, outboxID, msgID, success, noService );
+            }
+        } else if ( context.getString( R.string.msg_delivered ).equals( action ) ) {
+            Tracker.onDelivered( context, msgID );
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2019 by Eric House (eehouse@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.eehouse.android.nbsp;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.telephony.SmsManager;
+
+/**
+ * The real thing
+ */
+class SmsTransport extends Transport {
+
+    @Override
+    void send( Context context, String phone, short port, byte[] pdu,
+               PendingIntent sent, PendingIntent delivery )
+    {
+        SmsManager.getDefault()
+            .sendDataMessage( phone, null, port, pdu, sent, delivery );
+    }
+
+    @Override
+    boolean isRadio() { return true; }
+}
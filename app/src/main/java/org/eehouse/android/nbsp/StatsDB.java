@@ -19,11 +19,11 @@
 
 package org.eehouse.android.nbsp;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
@@ -31,16 +31,16 @@ import android.util.Log;
 import junit.framework.Assert;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Record-keeping DB.
@@ -57,15 +57,60 @@ import java.util.concurrent.TimeUnit;
 
 public class StatsDB {
     private static final String TAG = StatsDB.class.getSimpleName();
-    private static final String TABLE_NAME = "KVPairs";
+    private static final String TABLE_NAME = "KV";
     private static final String DB_NAME = "nbsp";
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = 4;
+
+    // Before DB_VERSION 4 this held what TABLE_NAME does, with every value
+    // a string and nothing to stop a key appearing twice
+    private static final String OLD_TABLE_NAME = "KVPairs";
+
+    // Values are KVCodec's. Statements are compiled once; for queries,
+    // SQLiteDatabase caches them for us.
+    private static final String GET_SQL =
+        "SELECT VALUE FROM " + TABLE_NAME + " WHERE KEY = ?";
+    private static final String GET_PREFIX_SQL =
+        "SELECT KEY, VALUE FROM " + TABLE_NAME + " WHERE KEY >= ? AND KEY < ?";
+    private static final String PUT_SQL =
+        "INSERT OR REPLACE INTO " + TABLE_NAME + " (KEY, VALUE) VALUES (?, ?)";
+
+    // Hour stats, one row per port per hour. Before DB_VERSION 3 these
+    // were serialized HourRecords in OLD_TABLE_NAME.
+    private static final String HOURS_TABLE = "HourStats";
+    private static final String COL_PORT = "PORT";
+    private static final String COL_HOUR = "HOUR";
+    private static final String COL_COUNT_TX = "COUNT_TX";
+    private static final String COL_BYTES_TX = "BYTES_TX";
+    private static final String COL_COUNT_RX = "COUNT_RX";
+    private static final String COL_BYTES_RX = "BYTES_RX";
+    // Roughly what a row costs, for getBytesWritten()
+    private static final int HOUR_ROW_BYTES = 6 * 8;
+
+    // Adds an HourRecord to its row, creating it if need be. A single
+    // statement, and a single primary-key seek: the SELECT, an aggregate,
+    // yields one row whether or not there's one to add to. (UPSERT would
+    // be clearer, but needs a newer SQLite than old devices have.)
+    private static final String ADD_HOUR_SQL =
+        "INSERT OR REPLACE INTO " + HOURS_TABLE + " ("
+        + COL_PORT + ", " + COL_HOUR + ", " + COL_COUNT_TX + ", "
+        + COL_BYTES_TX + ", " + COL_COUNT_RX + ", " + COL_BYTES_RX + ") "
+        + "SELECT ?1, ?2, "
+        + "?3 + IFNULL(SUM(" + COL_COUNT_TX + "), 0), "
+        + "?4 + IFNULL(SUM(" + COL_BYTES_TX + "), 0), "
+        + "?5 + IFNULL(SUM(" + COL_COUNT_RX + "), 0), "
+        + "?6 + IFNULL(SUM(" + COL_BYTES_RX + "), 0) "
+        + "FROM " + HOURS_TABLE
+        + " WHERE " + COL_PORT + " = ?1 AND " + COL_HOUR + " = ?2";
 
     /**
      * Class that stores all data for a single appID for a week. If week == 0,
      * it represents all time prior to numbered weeks.
      */
     public static class HourRecord implements Serializable {
+        // What it was before this was pinned, so that rows from before
+        // DB_VERSION 3 can still be read and moved to HOURS_TABLE
+        private static final long serialVersionUID = -4310794564921193112L;
+
         short port;
         long bytesTX;
         int countTX;
@@ -107,16 +152,7 @@ public class StatsDB {
 
         public short getPort() { return port; }
 
-        /**
-         * Produce a key that'll likely not conflict with other uses of a
-         * key->value table AND be sortable and express week/port uniqueness
-         */
-        String getKey()
-        {
-            Assert.assertTrue( hour > 0 );
-            return String.format( "HourRecord:%d:%d", hour, port );
-        }
-
+        // Matches the keys they had in OLD_TABLE_NAME before DB_VERSION 3
         static String keyPattern()
         {
             return "HourRecord:%:%";
@@ -136,9 +172,170 @@ public class StatsDB {
         private static long weekAgoAsHour() { return nowAsHour() - (24 * 7); }
     }
 
+    /**
+     * Lifetime totals for compression on a port: bytes the client gave us,
+     * and what we actually sent.
+     */
+    private static class CompRecord {
+        short port;
+        long rawBytes;
+        long wireBytes;
+        CompRecord( short port, long rawBytes, long wireBytes )
+        {
+            this.port = port;
+            this.rawBytes = rawBytes;
+            this.wireBytes = wireBytes;
+        }
+
+        String getKey() { return String.format( "CompRecord:%d", port ); }
+
+        static String keyPrefix() { return "CompRecord:"; }
+
+        String asString() { return String.format( "%d:%d", rawBytes, wireBytes ); }
+
+        static CompRecord fromString( short port, String asStr )
+        {
+            CompRecord result = null;
+            String[] parts = TextUtils.split( asStr, ":" );
+            if ( parts.length == 2 ) {
+                result = new CompRecord( port, Long.parseLong( parts[0] ),
+                                         Long.parseLong( parts[1] ) );
+            }
+            return result;
+        }
+
+        static short portFromKey( String key )
+        {
+            return Short.parseShort( key.substring( key.indexOf( ':' ) + 1 ) );
+        }
+    }
+
+    /**
+     * Lifetime histogram of send->sent or send->delivered latency on a
+     * port. Bucket ii counts messages that took no longer than BOUNDS[ii]
+     * (and longer than BOUNDS[ii-1]); anything slower lands in the last.
+     */
+    private static class LatencyRecord {
+        private static final long[] BOUNDS = {
+            500, 1000, 2000, 5000, 10 * 1000, 20 * 1000, 30 * 1000, 60 * 1000,
+            2 * 60 * 1000, 5 * 60 * 1000, 10 * 60 * 1000, 30 * 60 * 1000,
+            Tracker.TIMEOUT_MS,
+        };
+
+        short port;
+        boolean delivered;
+        int[] counts = new int[BOUNDS.length];
+
+        LatencyRecord( short port, boolean delivered )
+        {
+            this.port = port;
+            this.delivered = delivered;
+        }
+
+        LatencyRecord( short port, boolean delivered, long latency )
+        {
+            this( port, delivered );
+            int indx = 0;
+            while ( indx < BOUNDS.length - 1 && latency > BOUNDS[indx] ) {
+                ++indx;
+            }
+            counts[indx] = 1;
+        }
+
+        String getKey() { return makeKey( port, delivered ); }
+
+        static String makeKey( short port, boolean delivered )
+        {
+            return String.format( "Latency:%s:%d", delivered ? "dlvr" : "sent", port );
+        }
+
+        static String keyPrefix() { return "Latency:"; }
+
+        void append( LatencyRecord other )
+        {
+            for ( int ii = 0; ii < counts.length; ++ii ) {
+                counts[ii] += other.counts[ii];
+            }
+        }
+
+        int total()
+        {
+            int result = 0;
+            for ( int count : counts ) {
+                result += count;
+            }
+            return result;
+        }
+
+        // Upper bound of the bucket the percentile falls in
+        long percentile( int percent )
+        {
+            long result = -1;
+            int total = total();
+            if ( 0 < total ) {
+                int needed = Math.max( 1, (int)Math.ceil( total * percent / 100.0 ) );
+                int seen = 0;
+                for ( int ii = 0; result == -1 && ii < counts.length; ++ii ) {
+                    seen += counts[ii];
+                    if ( seen >= needed ) {
+                        result = BOUNDS[ii];
+                    }
+                }
+            }
+            return result;
+        }
+
+        String asString() { return TextUtils.join( ":", toStrings() ); }
+
+        private String[] toStrings()
+        {
+            String[] result = new String[counts.length];
+            for ( int ii = 0; ii < counts.length; ++ii ) {
+                result[ii] = String.valueOf( counts[ii] );
+            }
+            return result;
+        }
+
+        static LatencyRecord fromString( String key, String asStr )
+        {
+            LatencyRecord result = null;
+            String[] keyParts = TextUtils.split( key, ":" );
+            String[] parts = TextUtils.split( asStr, ":" );
+            if ( keyParts.length == 3 && parts.length == BOUNDS.length ) {
+                result = new LatencyRecord( Short.parseShort( keyParts[2] ),
+                                            "dlvr".equals( keyParts[1] ) );
+                for ( int ii = 0; ii < parts.length; ++ii ) {
+                    result.counts[ii] = Integer.parseInt( parts[ii] );
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Lifetime count of duplicate PDUs dropped on a port
+     */
+    private static class DupRecord {
+        short port;
+        long count;
+        DupRecord( short port, long count ) { this.port = port; this.count = count; }
+
+        String getKey() { return String.format( "DupRecord:%d", port ); }
+
+        static String keyPrefix() { return "DupRecord:"; }
+
+        static short portFromKey( String key )
+        {
+            return Short.parseShort( key.substring( key.indexOf( ':' ) + 1 ) );
+        }
+    }
+
     public static class IOData {
         private Map<Short, HourRecord[]> mMap = new HashMap<>();
         private Map<Short, String> mNames = new HashMap<>();
+        private Map<Short, CompRecord> mComps = new HashMap<>();
+        private Map<String, LatencyRecord> mLatencies = new HashMap<>();
+        private Map<Short, Long> mDups = new HashMap<>();
         private long mThisHour = HourRecord.nowAsHour();
         private long mLastWeek = HourRecord.weekAgoAsHour();
 
@@ -156,6 +353,50 @@ public class StatsDB {
 
         public HourRecord[] get( short key ) { return mMap.get( key ); }
 
+        /**
+         * @return null if nothing's been compressed on port, otherwise {bytes
+         * given, bytes sent}
+         */
+        public long[] compressionFor( short port )
+        {
+            long[] result = null;
+            CompRecord rec = mComps.get( port );
+            if ( rec != null ) {
+                result = new long[] { rec.rawBytes, rec.wireBytes };
+            }
+            return result;
+        }
+
+        /**
+         * @return how many duplicate PDUs have been dropped on port
+         */
+        public long duplicatesFor( short port )
+        {
+            Long result = mDups.get( port );
+            return result == null ? 0 : result;
+        }
+
+        /**
+         * @param delivered true for send->delivered, false for send->sent
+         *
+         * @return upper bound, in ms, on the latency of percent percent of
+         * messages sent on port, or -1 if there's no data
+         */
+        public long latencyFor( short port, boolean delivered, int percent )
+        {
+            LatencyRecord rec = mLatencies.get( LatencyRecord.makeKey( port, delivered ) );
+            return rec == null ? -1 : rec.percentile( percent );
+        }
+
+        /**
+         * @return how many messages latencyFor() is based on
+         */
+        public int latencyCount( short port, boolean delivered )
+        {
+            LatencyRecord rec = mLatencies.get( LatencyRecord.makeKey( port, delivered ) );
+            return rec == null ? 0 : rec.total();
+        }
+
         private void setAppName( short port, String appName )
         {
             mNames.put( port, appName );
@@ -183,23 +424,33 @@ public class StatsDB {
         }
     }
 
+    private static class FlushRequest {
+        Runnable onFlushed;
+        FlushRequest( Runnable onFlushed ) { this.onFlushed = onFlushed; }
+    }
+
     private static class DataRequest {
         OnHaveHourRecords proc;
         DataRequest( OnHaveHourRecords proc ) { this.proc = proc; }
     }
 
-    private static class StringRequest {
-        OnHaveString proc;
+    // For ValueRequest: the value as stored, or null if there's none
+    private interface OnHaveBytes {
+        void onHaveData( String key, byte[] data );
+    }
+
+    private static class ValueRequest {
+        OnHaveBytes proc;
         String key;
-        StringRequest( String key, OnHaveString proc ) {
+        ValueRequest( String key, OnHaveBytes proc ) {
             this.proc = proc; this.key = key;
         }
     }
 
     private static class KVPair {
         String key;
-        String val;
-        KVPair( String key, String val ) { this.key = key; this.val = val; }
+        byte[] val;
+        KVPair( String key, byte[] val ) { this.key = key; this.val = val; }
     }
 
     // Whatever. Just a hack to avoid context in Serializable
@@ -218,6 +469,36 @@ public class StatsDB {
         add( entry );
     }
 
+    /**
+     * Record the effect of compressing one message.
+     *
+     * @param rawLen Size of the client's data
+     * @param wireLen What was actually sent (rawLen if compressing didn't
+     * help)
+     */
+    public static void recordCompression( Context context, short port,
+                                          int rawLen, int wireLen )
+    {
+        add( new Carrier( context, new CompRecord( port, rawLen, wireLen ) ) );
+    }
+
+    /**
+     * Record that a PDU was dropped as a duplicate.
+     */
+    public static void recordDuplicate( Context context, short port )
+    {
+        add( new Carrier( context, new DupRecord( port, 1 ) ) );
+    }
+
+    /**
+     * Record how long a message took to be reported sent, or delivered.
+     */
+    public static void recordLatency( Context context, short port,
+                                      boolean delivered, long latencyMS )
+    {
+        add( new Carrier( context, new LatencyRecord( port, delivered, latencyMS ) ) );
+    }
+
     public interface OnHaveHourRecords {
         void onHaveData( IOData data );
     }
@@ -236,72 +517,64 @@ public class StatsDB {
 
     public static void put( Context context, String key, Serializable value )
     {
-        try {
-            ByteArrayOutputStream bas = new ByteArrayOutputStream();
-            ObjectOutputStream out = new ObjectOutputStream( bas );
-            out.writeObject( value );
-            out.flush();
-            byte[] bytes = bas.toByteArray();
-            String asStr = Base64.encodeToString( bytes, Base64.NO_WRAP );
-
-            put( context, key, asStr );
-        } catch ( Exception ex ) {
-            Log.e( TAG, "put(): ex: " + ex );
+        byte[] bytes = KVCodec.encode( value );
+        if ( bytes != null ) {
+            put( context, key, bytes );
         }
     }
 
     public static void put( Context context, String key, String value )
     {
-        KVPair pair = new KVPair( key, value );
-        Carrier carrier = new Carrier( context, pair );
-        add( carrier );
+        put( context, key, KVCodec.encodeString( value ) );
     }
 
     public static void put( Context context, String key, int value )
     {
-        String asStr = String.format( "%d", value );
-        KVPair pair = new KVPair( key, asStr );
+        put( context, key, KVCodec.encodeInt( value ) );
+    }
+
+    private static void put( Context context, String key, byte[] value )
+    {
+        KVPair pair = new KVPair( key, value );
         Carrier carrier = new Carrier( context, pair );
         add( carrier );
     }
 
     public static void get( Context context, String key, final OnHaveSerializable proc )
     {
-        get( context, key, new OnHaveString() {
+        get( context, key, new OnHaveBytes() {
                 @Override
-                public void onHaveData( String key, String data )
+                public void onHaveData( String key, byte[] data )
                 {
-                    Serializable result = null;
-                    if ( data != null ) {
-                        byte[] bytes = Base64.decode( data, Base64.NO_WRAP );
-                        try {
-                            ObjectInputStream ois =
-                                new ObjectInputStream( new ByteArrayInputStream(bytes) );
-                            result = (Serializable)ois.readObject();
-                        } catch ( Exception ex ) {
-                            Log.d( TAG, "getSerializable(): " + ex.getMessage() );
-                        }
-                    }
-                    proc.onHaveData( key, result );
+                    proc.onHaveData( key, KVCodec.decode( data ) );
                 }
             } );
     }
 
-    public static void get( Context context, String key, OnHaveString proc )
+    public static void get( Context context, String key, final OnHaveString proc )
     {
-        StringRequest request = new StringRequest( key, proc );
-        add( new Carrier( context, request ) );
+        get( context, key, new OnHaveBytes() {
+                @Override
+                public void onHaveData( String key, byte[] data )
+                {
+                    proc.onHaveData( key, KVCodec.decodeString( data ) );
+                }
+            } );
     }
 
     public static void get( Context context, String key, final int dflt, final OnHaveInt proc )
     {
-        StringRequest request = new StringRequest( key, new OnHaveString() {
+        get( context, key, new OnHaveBytes() {
                 @Override
-                public void onHaveData( String key, String asStr ) {
-                    int result = asStr == null ? dflt : Integer.parseInt( asStr );
-                    proc.onHaveData( key, result );
+                public void onHaveData( String key, byte[] data ) {
+                    proc.onHaveData( key, KVCodec.decodeInt( data, dflt ) );
                 }
             } );
+    }
+
+    private static void get( Context context, String key, OnHaveBytes proc )
+    {
+        ValueRequest request = new ValueRequest( key, proc );
         add( new Carrier( context, request ) );
     }
 
@@ -311,6 +584,72 @@ public class StatsDB {
         add( new Carrier( context, request ) );
     }
 
+    /**
+     * Writes are batched, so may wait up to the max latency (see
+     * setBatchLimits()) before they reach the DB. Reads always see them;
+     * this is for getting them onto disk sooner, e.g. before the process
+     * is likely to be killed.
+     *
+     * @param onFlushed if non-null, run (in the DB's thread) once
+     * everything passed to StatsDB before this call has been committed
+     */
+    public static void flush( Context context, Runnable onFlushed )
+    {
+        add( new Carrier( context, new FlushRequest( onFlushed ) ) );
+    }
+
+    /**
+     * @param maxBatch most writes to commit in one transaction
+     * @param maxLatencyMS longest a write may wait for others to join it
+     */
+    static void setBatchLimits( int maxBatch, long maxLatencyMS )
+    {
+        sMaxBatch = Math.max( 1, maxBatch );
+        sMaxLatencyMS = Math.max( 0, maxLatencyMS );
+    }
+
+    /**
+     * For tests: stop the WriterThread, dropping anything it hasn't got to,
+     * and forget the database. Robolectric gives each test a new
+     * application and closes the last one's databases, which would
+     * otherwise kill the next test's writes.
+     */
+    static void reset()
+    {
+        Thread thread;
+        synchronized( sThreadHolder ) {
+            thread = sThreadHolder[0];
+        }
+        if ( null != thread ) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch ( InterruptedException ie ) {
+                Log.e( TAG, "reset() interrupted" );
+            }
+        }
+        sQueue.clear();
+        synchronized( StatsDB.class ) {
+            sDbHelper = null;
+        }
+        WriterThread.sCache.clear();
+    }
+
+    private static DBHelper sDbHelper;
+
+    /**
+     * For others (e.g. Outbox) keeping tables in the same database. All
+     * share one connection, which SQLiteDatabase serializes.
+     */
+    static synchronized SQLiteDatabase getDB( Context context )
+    {
+        if ( null == sDbHelper ) {
+            Assert.assertNotNull( context );
+            sDbHelper = new DBHelper( context.getApplicationContext() );
+        }
+        return sDbHelper.getWritableDatabase();
+    }
+
     // Something to synchronize on
     private static Thread[] sThreadHolder = {null};
     private static void startThreadOnce()
@@ -324,6 +663,22 @@ public class StatsDB {
     }
 
     private static LinkedBlockingQueue<Carrier> sQueue = new LinkedBlockingQueue<>();
+    private static volatile int sMaxBatch = 100;
+    private static volatile long sMaxLatencyMS = 1000;
+
+    // What's been written to the database, for measuring the cost of
+    // record() etc. The WriterThread and the Outbox add to these.
+    private static AtomicLong sRowsWritten = new AtomicLong();
+    private static AtomicLong sBytesWritten = new AtomicLong();
+
+    static long getRowsWritten() { return sRowsWritten.get(); }
+    static long getBytesWritten() { return sBytesWritten.get(); }
+
+    static void addWritten( int rows, long bytes )
+    {
+        sRowsWritten.addAndGet( rows );
+        sBytesWritten.addAndGet( bytes );
+    }
 
     private static void add( Carrier elem )
     {
@@ -331,20 +686,59 @@ public class StatsDB {
         startThreadOnce();
     }
 
+    /**
+     * Writes are committed in batches, a transaction each, rather than
+     * one at a time. A batch ends when it's big enough, when its first
+     * write has waited long enough, or when a read or flush arrives, so
+     * reads always see every write made before them. Within a batch,
+     * HourRecords for the same port and hour are added together first, so
+     * a busy hour costs a row update per batch rather than per message.
+     *
+     * Key/value pairs are cached, so once read or written a value's read
+     * from memory, and a key written several times in a batch is written
+     * to the DB once. Reads still go through the queue (callers count on
+     * getting answers in order, on this thread) but no longer touch the
+     * DB. The cache only ever holds what's committed or in the batch being
+     * committed, so it can't disagree with the DB: if the process dies
+     * mid-batch the cache goes too, and if a commit fails what it wrote is
+     * dropped from the cache.
+     */
     private static class WriterThread extends Thread {
-        private DBHelper mDbHelper;
+        private static final int MAX_CACHED = 64;
+        // Marks keys known not to be in the DB
+        private static final byte[] ABSENT = new byte[0];
+
+        // Only the WriterThread touches this. Static so it outlives each
+        // thread, which quits when there's nothing to do.
+        private static Map<String, byte[]> sCache =
+            new LinkedHashMap<String, byte[]>( 16, 0.75f, true ) {
+                @Override
+                protected boolean removeEldestEntry( Map.Entry<String, byte[]> eldest )
+                {
+                    return size() > MAX_CACHED;
+                }
+            };
+
         private SQLiteDatabase mDb;
+        private SQLiteStatement mAddHour;
+        private SQLiteStatement mPut;
+        private List<Carrier> mBatch = new ArrayList<>();
+        private Map<Long, HourRecord> mHours = new HashMap<>();
+        // Key/value pairs to write when the batch is committed, latest
+        // value for each key only
+        private Map<String, byte[]> mPending = new LinkedHashMap<>();
 
         @Override
         public void run()
         {
-            for ( ; ; ) {
+            for ( boolean more = true; more; ) {
                 try {
                     Carrier carrier = sQueue.poll(10, TimeUnit.SECONDS );
                     if ( carrier == null ) {
                         break;
                     }
-                    process( carrier );
+                    more = gather( carrier );
+                    processBatch();
                 } catch ( InterruptedException ie ) {
                     break;
                 }
@@ -358,6 +752,92 @@ public class StatsDB {
             }
         }
 
+        // Fill mBatch, starting with first. Returns false if interrupted,
+        // with what's been gathered so far still in mBatch.
+        private boolean gather( Carrier first )
+        {
+            boolean result = true;
+            long deadline = System.currentTimeMillis() + sMaxLatencyMS;
+            Carrier last = first;
+            mBatch.add( first );
+            while ( !isRequest( last ) && mBatch.size() < sMaxBatch ) {
+                long wait = deadline - System.currentTimeMillis();
+                try {
+                    last = 0 < wait ? sQueue.poll( wait, TimeUnit.MILLISECONDS )
+                        : sQueue.poll();
+                } catch ( InterruptedException ie ) {
+                    last = null;
+                    result = false;
+                }
+                if ( last == null ) {
+                    break;
+                }
+                mBatch.add( last );
+            }
+            return result;
+        }
+
+        // Anything that must see what's been written before it
+        private static boolean isRequest( Carrier carrier )
+        {
+            Object obj = carrier.rec;
+            return obj instanceof DataRequest || obj instanceof ValueRequest
+                || obj instanceof FlushRequest;
+        }
+
+        private void processBatch()
+        {
+            initDB( mBatch.get( 0 ).context );
+
+            // gather() stops at a request, so there's at most one and it's
+            // last. It's handled once the rest are committed.
+            Carrier request = null;
+            boolean committed = false;
+            mDb.beginTransaction();
+            try {
+                for ( Carrier carrier : mBatch ) {
+                    if ( isRequest( carrier ) ) {
+                        request = carrier;
+                    } else if ( carrier.rec instanceof HourRecord ) {
+                        merge( (HourRecord)carrier.rec );
+                    } else {
+                        process( carrier );
+                    }
+                }
+                for ( HourRecord rec : mHours.values() ) {
+                    addToTable( rec );
+                }
+                writePending();
+                mDb.setTransactionSuccessful();
+                committed = true;
+            } finally {
+                mDb.endTransaction();
+                if ( !committed ) {
+                    for ( String key : mPending.keySet() ) {
+                        sCache.remove( key );
+                    }
+                }
+                mPending.clear();
+                mHours.clear();
+                mBatch.clear();
+            }
+
+            if ( request != null ) {
+                process( request );
+            }
+        }
+
+        private void merge( HourRecord rec )
+        {
+            long key = (rec.hour << 16) | (rec.port & 0xFFFF);
+            HourRecord cur = mHours.get( key );
+            if ( cur == null ) {
+                mHours.put( key, rec );
+            } else {
+                cur.append( rec );
+            }
+        }
+
         private void process( Carrier carrier )
         {
             initDB( carrier.context );
@@ -365,12 +845,23 @@ public class StatsDB {
             Object obj = carrier.rec;
             if ( obj instanceof DataRequest ) {
                 doQuery( carrier.context, (DataRequest)obj );
-            } else if ( obj instanceof StringRequest ) {
-                doQuery( (StringRequest)obj );
+            } else if ( obj instanceof FlushRequest ) {
+                Runnable onFlushed = ((FlushRequest)obj).onFlushed;
+                if ( onFlushed != null ) {
+                    onFlushed.run();
+                }
+            } else if ( obj instanceof ValueRequest ) {
+                doQuery( (ValueRequest)obj );
             } else if ( obj instanceof HourRecord ) {
                 addToTable( (HourRecord)obj );
             } else if ( obj instanceof KVPair ) {
                 addToTable( (KVPair)obj );
+            } else if ( obj instanceof CompRecord ) {
+                addToTable( (CompRecord)obj );
+            } else if ( obj instanceof LatencyRecord ) {
+                addToTable( (LatencyRecord)obj );
+            } else if ( obj instanceof DupRecord ) {
+                addToTable( (DupRecord)obj );
             } else {
                 Assert.fail();
             }
@@ -378,15 +869,8 @@ public class StatsDB {
 
         private void addToTable( HourRecord entry )
         {
-            // If there's an entry, append. Otherwise create a new one
-            String key = entry.getKey();
-            HourRecord curRecord = getRecord( key );
-            if ( curRecord != null ) {
-                curRecord.append( entry );
-            } else {
-                curRecord = entry;
-            }
-            putRecord( curRecord );
+            addHour( mAddHour, entry );
+            addWritten( 1, HOUR_ROW_BYTES );
         }
 
         private void addToTable( KVPair pair )
@@ -394,104 +878,151 @@ public class StatsDB {
             put( pair.key, pair.val );
         }
 
-        private HourRecord getRecord( String key )
+        private void addToTable( CompRecord entry )
         {
-            HourRecord result = null;
-            String record = get( key );
-            if ( record != null ) {
-                result = strToRec( record );
+            String key = entry.getKey();
+            String cur = getString( key );
+            if ( cur != null ) {
+                CompRecord curRec = CompRecord.fromString( entry.port, cur );
+                if ( curRec != null ) {
+                    entry.rawBytes += curRec.rawBytes;
+                    entry.wireBytes += curRec.wireBytes;
+                }
             }
-            Log.d( TAG, "getRecord(" + key + ") => " + result );
-            return result;
+            putString( key, entry.asString() );
         }
 
-        private void putRecord( HourRecord val )
+        private void addToTable( LatencyRecord entry )
         {
-            try {
-                ByteArrayOutputStream bas = new ByteArrayOutputStream();
-                ObjectOutputStream out = new ObjectOutputStream( bas );
-                out.writeObject( val );
-                out.flush();
-                byte[] bytes = bas.toByteArray();
-                String asStr = Base64.encodeToString( bytes, Base64.NO_WRAP );
-
-                String key = val.getKey();
-                put( key, asStr );
-            } catch ( Exception ex ) {
-                Log.e( TAG, ex.getMessage() );
-                Assert.assertFalse( BuildConfig.DEBUG );
+            String key = entry.getKey();
+            String cur = getString( key );
+            if ( cur != null ) {
+                LatencyRecord curRec = LatencyRecord.fromString( key, cur );
+                if ( curRec != null ) {
+                    entry.append( curRec );
+                }
             }
+            putString( key, entry.asString() );
+        }
 
+        private void addToTable( DupRecord entry )
+        {
+            String key = entry.getKey();
+            String cur = getString( key );
+            if ( cur != null ) {
+                entry.count += Long.parseLong( cur );
+            }
+            putString( key, String.valueOf( entry.count ) );
         }
 
-        private HourRecord strToRec( String asStr )
+        private byte[] get( String key )
         {
-            HourRecord result = null;
-            byte[] bytes = Base64.decode( asStr, Base64.NO_WRAP );
-            try {
-                ObjectInputStream ois =
-                    new ObjectInputStream( new ByteArrayInputStream(bytes) );
-                result = (HourRecord)ois.readObject();
-            } catch ( Exception ex ) {
-                Log.d( TAG, "strToRec(): " + ex.getMessage() );
+            // Pending writes first: they may have been pushed out of the
+            // cache, and aren't in the DB yet
+            byte[] result = mPending.get( key );
+            if ( result == null ) {
+                result = sCache.get( key );
             }
-            return result;
+            if ( result == null ) {
+                result = ABSENT;
+                Cursor cursor = mDb.rawQuery( GET_SQL, new String[] { key } );
+                if ( cursor.moveToNext() && !cursor.isNull( 0 ) ) {
+                    result = cursor.getBlob( 0 );
+                }
+                cursor.close();
+                sCache.put( key, result );
+            }
+            return result == ABSENT ? null : result;
         }
 
-        private String get( String key )
+        // Readable at once; written when the batch is committed
+        private void put( String key, byte[] val )
         {
-            String result = null;
-            String selection = String.format( "%s = '%s'", "KEY", key );
-            String[] columns = { "VALUE" };
+            mPending.put( key, val );
+            sCache.put( key, val );
+        }
 
-            Cursor cursor = mDb.query( TABLE_NAME, columns,
-                                      selection, null, null, null, null );
-            Assert.assertTrue( 1 >= cursor.getCount() );
-            int indx = cursor.getColumnIndex( "VALUE" );
-            if ( cursor.moveToNext() ) {
-                result = cursor.getString( indx );
+        private void writePending()
+        {
+            for ( Map.Entry<String, byte[]> entry : mPending.entrySet() ) {
+                String key = entry.getKey();
+                byte[] val = entry.getValue();
+                mPut.bindString( 1, key );
+                mPut.bindBlob( 2, val );
+                long result = mPut.executeInsert();
+                addWritten( 1, key.length() + val.length );
+                Log.d( TAG, "put(" + key + ") => " + result );
             }
-            cursor.close();
-            return result;
         }
 
-        private void put( String key, String val )
+        private String getString( String key )
         {
-            String selection = String.format( "%s = '%s'", "KEY", key );
-            ContentValues values = new ContentValues();
-            values.put( "VALUE", val );
+            return KVCodec.decodeString( get( key ) );
+        }
 
-            long result = mDb.update( TABLE_NAME, values, selection, null );
-            if ( 0 == result ) {
-                values.put( "KEY", key );
-                result = mDb.insert( TABLE_NAME, null, values );
-            }
-            Log.d( TAG, "put(" + key + ") => " + result );
+        private void putString( String key, String val )
+        {
+            put( key, KVCodec.encodeString( val ) );
+        }
+
+        // Every row whose key starts with prefix: a range on the primary
+        // key, so an index seek. (LIKE can't use the index.)
+        private Cursor getPrefixed( String prefix )
+        {
+            int last = prefix.length() - 1;
+            String end = prefix.substring( 0, last ) + (char)(prefix.charAt( last ) + 1);
+            return mDb.rawQuery( GET_PREFIX_SQL, new String[] { prefix, end } );
         }
 
         private void doQuery( final Context context, final DataRequest entry )
         {
             final IOData result = new IOData();
 
-            String selection = String.format( "KEY LIKE '%s'", HourRecord.keyPattern() );
-            String[] columns = { "KEY", "VALUE" };
-
-            Cursor cursor = mDb.query( TABLE_NAME, columns, selection, null, null,
+            String[] hourColumns = { COL_PORT, COL_HOUR, COL_COUNT_TX, COL_BYTES_TX,
+                                     COL_COUNT_RX, COL_BYTES_RX };
+            Cursor cursor = mDb.query( HOURS_TABLE, hourColumns, null, null, null,
                                        null, null );
-            int indxVal = cursor.getColumnIndex( "VALUE" );
-            int indxKey = cursor.getColumnIndex( "KEY" );
             while ( cursor.moveToNext() ) {
-                String asStr = cursor.getString( indxVal );
-                HourRecord hour = strToRec( asStr );
-                if ( hour == null ) {
-                    String key = cursor.getString( indxKey );
-                    Log.e( TAG, "tossing hour for " + key );
-                } else {
-                    result.add( hour );
+                HourRecord hour = new HourRecord( (short)cursor.getInt( 0 ) );
+                hour.hour = cursor.getLong( 1 );
+                hour.countTX = cursor.getInt( 2 );
+                hour.bytesTX = cursor.getLong( 3 );
+                hour.countRX = cursor.getInt( 4 );
+                hour.bytesRX = cursor.getLong( 5 );
+                result.add( hour );
+            }
+            cursor.close();
+
+            cursor = getPrefixed( CompRecord.keyPrefix() );
+            while ( cursor.moveToNext() ) {
+                short port = CompRecord.portFromKey( cursor.getString( 0 ) );
+                CompRecord rec = CompRecord
+                    .fromString( port, KVCodec.decodeString( cursor.getBlob( 1 ) ) );
+                if ( rec != null ) {
+                    result.mComps.put( port, rec );
                 }
             }
             cursor.close();
 
+            cursor = getPrefixed( LatencyRecord.keyPrefix() );
+            while ( cursor.moveToNext() ) {
+                String key = cursor.getString( 0 );
+                LatencyRecord rec = LatencyRecord
+                    .fromString( key, KVCodec.decodeString( cursor.getBlob( 1 ) ) );
+                if ( rec != null ) {
+                    result.mLatencies.put( key, rec );
+                }
+            }
+            cursor.close();
+
+            cursor = getPrefixed( DupRecord.keyPrefix() );
+            while ( cursor.moveToNext() ) {
+                short port = DupRecord.portFromKey( cursor.getString( 0 ) );
+                String count = KVCodec.decodeString( cursor.getBlob( 1 ) );
+                result.mDups.put( port, count == null ? 0 : Long.parseLong( count ) );
+            }
+            cursor.close();
+
             // Now translate the ports and make callback
             final short[] ports = new short[result.size()];
             int ii = 0;
@@ -515,33 +1046,48 @@ public class StatsDB {
                 } );
         }
 
-        private void doQuery( StringRequest entry )
+        private void doQuery( ValueRequest entry )
         {
-            String val = null;
-            String selection = String.format( "KEY = '%s'", entry.key );
-            String[] columns = { "VALUE" };
-            Cursor cursor = mDb.query( TABLE_NAME, columns, selection, null, null, null, null );
-            int indxVal = cursor.getColumnIndex( "VALUE" );
-            if ( cursor.moveToNext() ) {
-                val = cursor.getString( indxVal );
-            }
-            cursor.close();
-
-            entry.proc.onHaveData( entry.key, val );
+            entry.proc.onHaveData( entry.key, get( entry.key ) );
         }
 
         private void initDB( Context context )
         {
-            if ( null == mDbHelper ) {
-                Assert.assertNotNull( context );
-                mDbHelper = new DBHelper( context );
-                // force any upgrade
-                mDbHelper.getWritableDatabase().close();
-                mDb = mDbHelper.getWritableDatabase();
+            if ( null == mDb ) {
+                mDb = getDB( context );
+                mAddHour = mDb.compileStatement( ADD_HOUR_SQL );
+                mPut = mDb.compileStatement( PUT_SQL );
             }
         }
     }
 
+    // stmt is a compiled ADD_HOUR_SQL
+    private static void addHour( SQLiteStatement stmt, HourRecord rec )
+    {
+        Assert.assertTrue( rec.hour > 0 );
+        stmt.bindLong( 1, rec.port );
+        stmt.bindLong( 2, rec.hour );
+        stmt.bindLong( 3, rec.countTX );
+        stmt.bindLong( 4, rec.bytesTX );
+        stmt.bindLong( 5, rec.countRX );
+        stmt.bindLong( 6, rec.bytesRX );
+        stmt.executeInsert();
+    }
+
+    private static HourRecord strToRec( String asStr )
+    {
+        HourRecord result = null;
+        byte[] bytes = Base64.decode( asStr, Base64.NO_WRAP );
+        try {
+            ObjectInputStream ois =
+                new ObjectInputStream( new ByteArrayInputStream(bytes) );
+            result = (HourRecord)ois.readObject();
+        } catch ( Exception ex ) {
+            Log.d( TAG, "strToRec(): " + ex.getMessage() );
+        }
+        return result;
+    }
+
     private static class DBHelper extends SQLiteOpenHelper {
 
         public DBHelper( Context context )
@@ -551,16 +1097,90 @@ public class StatsDB {
         
         @Override
         public void onCreate( SQLiteDatabase db )
+        {
+            createKVTable( db );
+            Outbox.createTable( db );
+            createHoursTable( db );
+        }
+
+        private static void createKVTable( SQLiteDatabase db )
         {
             StringBuilder query =
                 new StringBuilder( "CREATE TABLE " )
                 .append( TABLE_NAME )
-                .append( "(KEY VARCHAR, VALUE VARCHAR);" );
+                .append( "(KEY TEXT PRIMARY KEY NOT NULL, VALUE BLOB);" );
 
             Log.d( TAG, "making DB: " + query.toString() );
             db.execSQL( query.toString() );
         }
 
+        private static void createHoursTable( SQLiteDatabase db )
+        {
+            db.execSQL( "CREATE TABLE " + HOURS_TABLE + " ("
+                        + COL_PORT + " INTEGER NOT NULL, "
+                        + COL_HOUR + " INTEGER NOT NULL, "
+                        + COL_COUNT_TX + " INTEGER NOT NULL DEFAULT 0, "
+                        + COL_BYTES_TX + " INTEGER NOT NULL DEFAULT 0, "
+                        + COL_COUNT_RX + " INTEGER NOT NULL DEFAULT 0, "
+                        + COL_BYTES_RX + " INTEGER NOT NULL DEFAULT 0, "
+                        + "PRIMARY KEY (" + COL_PORT + ", " + COL_HOUR + "));" );
+        }
+
+        // Move the HourRecords that used to be kept in OLD_TABLE_NAME into
+        // HOURS_TABLE. Any that can't be read are dropped, as reading the
+        // stats did before.
+        private static void moveHourRecords( SQLiteDatabase db )
+        {
+            String selection = String.format( "KEY LIKE '%s'", HourRecord.keyPattern() );
+            String[] columns = { "KEY", "VALUE" };
+            Cursor cursor = db.query( OLD_TABLE_NAME, columns, selection, null, null,
+                                      null, null );
+            SQLiteStatement addHour = db.compileStatement( ADD_HOUR_SQL );
+            int moved = 0;
+            try {
+                while ( cursor.moveToNext() ) {
+                    HourRecord rec = strToRec( cursor.getString( 1 ) );
+                    if ( rec == null || rec.hour <= 0 ) {
+                        Log.e( TAG, "tossing hour for " + cursor.getString( 0 ) );
+                    } else {
+                        addHour( addHour, rec );
+                        ++moved;
+                    }
+                }
+            } finally {
+                addHour.close();
+                cursor.close();
+            }
+            db.delete( OLD_TABLE_NAME, selection, null );
+            Log.i( TAG, "moveHourRecords(): moved " + moved );
+        }
+
+        // Move everything else in OLD_TABLE_NAME to TABLE_NAME, marked as
+        // old-style values for KVCodec. If a key's there twice the later
+        // row wins, as it would have been the one read.
+        private static void moveKVPairs( SQLiteDatabase db )
+        {
+            String[] columns = { "KEY", "VALUE" };
+            Cursor cursor = db.query( OLD_TABLE_NAME, columns, null, null, null,
+                                      null, null );
+            SQLiteStatement put = db.compileStatement( PUT_SQL );
+            try {
+                while ( cursor.moveToNext() ) {
+                    String key = cursor.getString( 0 );
+                    String val = cursor.getString( 1 );
+                    if ( key != null && val != null ) {
+                        put.bindString( 1, key );
+                        put.bindBlob( 2, KVCodec.encodeOld( val ) );
+                        put.executeInsert();
+                    }
+                }
+            } finally {
+                put.close();
+                cursor.close();
+            }
+            db.execSQL( "DROP TABLE " + OLD_TABLE_NAME + ";" );
+        }
+
         @Override
         @SuppressWarnings("fallthrough")
         public void onUpgrade( SQLiteDatabase db, int oldVersion, int newVersion )
@@ -568,8 +1188,19 @@ public class StatsDB {
             Log.i( TAG, "onUpgrade: old: " + oldVersion + "; new: " + newVersion );
 
             switch( oldVersion ) {
+            case 1:
+                Outbox.createTable( db );
+                // fall through
+            case 2:
+                createHoursTable( db );
+                moveHourRecords( db );
+                // fall through
+            case 3:
+                createKVTable( db );
+                moveKVPairs( db );
+                break;
             default:
-                db.execSQL( "DROP TABLE " + TABLE_NAME + ";" );
+                db.execSQL( "DROP TABLE " + OLD_TABLE_NAME + ";" );
                 onCreate( db );
             }
         }
@@ -0,0 +1,191 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2019 by Eric House (eehouse@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.eehouse.android.nbsp;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.eehouse.android.nbsplib.NBSProxy;
+
+/**
+ * Keeps track of messages between when they're sent and when the last of
+ * their PDUs is reported delivered, so StatsDB can keep latency histograms.
+ *
+ * Each message gets an id here that RequestReceiver puts in the PendingIntents
+ * for all its PDUs. The table's in memory only: if we're killed whatever's
+ * outstanding is forgotten, and anything outstanding longer than TIMEOUT_MS
+ * is dropped (most carriers never report delivery at all).
+ *
+ * Messages sent with NBSProxy.sendAsync() also remember who sent them, so
+ * the results can be passed back.
+ */
+class Tracker {
+    private static final String TAG = Tracker.class.getSimpleName();
+
+    // StatsDB's histograms top out here too
+    static final long TIMEOUT_MS = 60 * 60 * 1000;
+    private static final long EXPIRE_INTERVAL_MS = 60 * 1000;
+
+    private static Map<Integer, Outstanding> sOutstanding = new HashMap<>();
+    private static int sNextID = new Random().nextInt();
+    private static long sLastExpire;
+
+    private static class Outstanding {
+        short port;
+        long started;
+        int sentLeft;
+        int deliveredLeft;
+        // Non-null if the client wants to hear how things went; see
+        // NBSProxy.sendAsync()
+        String appID;
+        int clientMsgID;
+        boolean failureReported;
+        Outstanding( short port, int pduCount, String appID, int clientMsgID )
+        {
+            this.port = port;
+            started = System.currentTimeMillis();
+            sentLeft = deliveredLeft = pduCount;
+            this.appID = appID;
+            this.clientMsgID = clientMsgID;
+        }
+    }
+
+    /**
+     * @param appID if non-null, the app to report results to
+     * @param clientMsgID the id that app knows the message by
+     *
+     * @return id to pass to onSent() and onDelivered() for each of the
+     * message's PDUs
+     */
+    static synchronized int start( short port, int pduCount, String appID,
+                                   int clientMsgID )
+    {
+        expire();
+        int msgID = ++sNextID;
+        sOutstanding.put( msgID, new Outstanding( port, pduCount, appID, clientMsgID ) );
+        return msgID;
+    }
+
+    static void onSent( Context context, int msgID )
+    {
+        Outstanding done = null;
+        long latency = 0;
+        synchronized ( Tracker.class ) {
+            Outstanding out = sOutstanding.get( msgID );
+            if ( out != null && 0 == --out.sentLeft ) {
+                done = out;
+                latency = System.currentTimeMillis() - out.started;
+            }
+        }
+        if ( null != done ) {
+            StatsDB.recordLatency( context, done.port, false, latency );
+            report( context, done, NBSProxy.RESULT.SENT, null );
+        }
+    }
+
+    /**
+     * A PDU failed, but will be retried. Client hears about only the first
+     * such per message.
+     */
+    static void onSendFailed( Context context, int msgID )
+    {
+        Outstanding out;
+        synchronized ( Tracker.class ) {
+            out = sOutstanding.get( msgID );
+            if ( out != null && out.failureReported ) {
+                out = null;
+            } else if ( out != null ) {
+                out.failureReported = true;
+            }
+        }
+        if ( out != null ) {
+            report( context, out, NBSProxy.RESULT.SEND_FAILED, null );
+        }
+    }
+
+    /**
+     * A PDU won't be retried, so the message is lost.
+     */
+    static void onGaveUp( Context context, int msgID, String reason )
+    {
+        Outstanding out;
+        synchronized ( Tracker.class ) {
+            out = sOutstanding.remove( msgID );
+        }
+        if ( out != null ) {
+            report( context, out, NBSProxy.RESULT.FAILED, reason );
+        }
+    }
+
+    static void onDelivered( Context context, int msgID )
+    {
+        Outstanding done = null;
+        long latency = 0;
+        synchronized ( Tracker.class ) {
+            Outstanding out = sOutstanding.get( msgID );
+            if ( out != null && 0 == --out.deliveredLeft ) {
+                sOutstanding.remove( msgID );
+                done = out;
+                latency = System.currentTimeMillis() - out.started;
+            }
+        }
+        if ( null != done ) {
+            StatsDB.recordLatency( context, done.port, true, latency );
+            report( context, done, NBSProxy.RESULT.DELIVERED, null );
+        }
+    }
+
+    private static void report( Context context, Outstanding out,
+                                NBSProxy.RESULT result, String reason )
+    {
+        if ( out.appID != null ) {
+            RequestReceiver.sendResult( context, out.appID, out.clientMsgID,
+                                        result, reason );
+        }
+    }
+
+    // Must hold lock on Tracker.class. Does nothing more often than once
+    // every EXPIRE_INTERVAL_MS, so it's cheap to call on every send.
+    private static void expire()
+    {
+        long now = System.currentTimeMillis();
+        if ( now - sLastExpire >= EXPIRE_INTERVAL_MS ) {
+            sLastExpire = now;
+            long tooOld = now - TIMEOUT_MS;
+            int count = 0;
+            Iterator<Outstanding> iter = sOutstanding.values().iterator();
+            while ( iter.hasNext() ) {
+                if ( iter.next().started < tooOld ) {
+                    iter.remove();
+                    ++count;
+                }
+            }
+            if ( 0 < count ) {
+                Log.d( TAG, "expire(): dropped " + count + "; "
+                       + sOutstanding.size() + " outstanding" );
+            }
+        }
+    }
+}
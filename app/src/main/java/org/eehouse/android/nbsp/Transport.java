@@ -0,0 +1,115 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2019 by Eric House (eehouse@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.eehouse.android.nbsp;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+/**
+ * How a PDU leaves the device: normally SMS, but a send to this phone's own
+ * number can skip the network and go straight to NBSReceiver instead. For
+ * stress testing, every send can be made to do that.
+ *
+ * Only SMS is rate-limited and can fail, so only it goes through the
+ * Scheduler and the Outbox. Both kinds get the same sent- and
+ * delivered-status PendingIntents, so the Tracker and stats see the same
+ * thing either way.
+ */
+public abstract class Transport {
+    private static final String TAG = Transport.class.getSimpleName();
+
+    static final Transport SMS = new SmsTransport();
+    static final Transport LOOPBACK = new LoopbackTransport();
+
+    // What SMS means. Tests replace it with a simulated network.
+    private static volatile Transport sRadio = SMS;
+    private static volatile boolean sLoopSelf;
+    private static volatile boolean sLoopAll;
+    private static String sLine1;           // null until looked up
+    private static boolean sHaveLine1;
+
+    /**
+     * Send one PDU, firing sent and delivery as SmsManager would
+     */
+    abstract void send( Context context, String phone, short port, byte[] pdu,
+                        PendingIntent sent, PendingIntent delivery );
+
+    /**
+     * @return true if this is the real network, whose sends are rate-limited
+     * and may need retrying
+     */
+    abstract boolean isRadio();
+
+    /**
+     * Whether sends to this phone's own number skip the network
+     */
+    public static void setLoopSelf( boolean loop ) { sLoopSelf = loop; }
+    public static boolean getLoopSelf() { return sLoopSelf; }
+
+    /**
+     * Whether every send, wherever it's addressed, skips the network and
+     * is received here as if from the number it was sent to. For testing.
+     */
+    public static void setLoopAll( boolean loop ) { sLoopAll = loop; }
+    public static boolean getLoopAll() { return sLoopAll; }
+
+    /**
+     * For tests: stand in for SmsManager. null restores it.
+     */
+    static void setRadio( Transport radio )
+    {
+        sRadio = radio == null ? SMS : radio;
+    }
+
+    static Transport getRadio() { return sRadio; }
+
+    static Transport forPhone( Context context, String phone )
+    {
+        Transport result = sRadio;
+        if ( sLoopAll ) {
+            result = LOOPBACK;
+        } else if ( sLoopSelf ) {
+            String line1 = getLine1( context );
+            if ( line1 != null && PhoneNumberUtils.compare( context, line1, phone ) ) {
+                result = LOOPBACK;
+            }
+        }
+        return result;
+    }
+
+    // Looked up once: it's an IPC, and doesn't change while we're running
+    private static synchronized String getLine1( Context context )
+    {
+        if ( !sHaveLine1 ) {
+            sHaveLine1 = true;
+            TelephonyManager mgr = (TelephonyManager)
+                context.getSystemService( Context.TELEPHONY_SERVICE );
+            try {
+                sLine1 = mgr == null ? null : mgr.getLine1Number();
+            } catch ( SecurityException se ) {
+                Log.e( TAG, "getLine1(): " + se.getMessage() );
+            }
+        }
+        return sLine1;
+    }
+}
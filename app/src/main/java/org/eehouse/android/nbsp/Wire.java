@@ -0,0 +1,213 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2019 by Eric House (eehouse@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.eehouse.android.nbsp;
+
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * What goes over the air. A message that needs no processing and fits in one
+ * PDU goes exactly as the client gave it, so NBSProxy still interoperates
+ * with apps doing NBS themselves. Otherwise it's framed:
+ *
+ *  0: MAGIC (2 bytes)
+ *  2: flags (FLAG_DEFLATE etc.)
+ *  3: the (processed) message
+ *
+ * When both FLAG_PACKED and FLAG_DEFLATE are set, the packed messages were
+ * compressed as a unit.
+ *
+ * A client message that happens to start with MAGIC is framed with no flags
+ * so it can't be mistaken for a frame.
+ *
+ * Then anything too big for one PDU is split into fragments, each of which
+ * starts with a header:
+ *
+ *  0: MAGIC (2 bytes)
+ *  2: flags (FLAG_FRAG)
+ *  3: message id (2 bytes)
+ *  5: index of this fragment
+ *  6: count of fragments
+ *  7: CRC32 of the whole message (4 bytes)
+ * 11: this fragment's share of the message
+ */
+class Wire {
+    private static final String TAG = Wire.class.getSimpleName();
+
+    // Data SMS user data is 140 bytes, less 7 for the port-addressing header
+    static final int MAX_PDU = 133;
+
+    private static final byte[] MAGIC = { (byte)0xE4, (byte)0x5B };
+    private static final int FLAG_FRAG = 0x01;
+    static final int FLAG_DEFLATE = 0x02;
+    static final int FLAG_PACKED = 0x04; // See Coalescer
+    static final int FRAME_HEADER_LEN = 3;
+    private static final int FRAG_HEADER_LEN = 11;
+    private static final int MAX_FRAG_DATA = MAX_PDU - FRAG_HEADER_LEN;
+    private static final int MAX_FRAGS = 32;
+
+    /** Largest (framed) message split() will accept */
+    static final int MAX_MESSAGE = MAX_FRAGS * MAX_FRAG_DATA;
+
+    /**
+     * What's left of a message once fragments are joined and the frame
+     * header's off.
+     */
+    static class Frame {
+        int flags;
+        byte[] body;
+        Frame( int flags, byte[] body ) { this.flags = flags; this.body = body; }
+    }
+
+    /**
+     * @return data with a frame header if flags (or data itself) require
+     * one; otherwise data unmodified
+     */
+    static byte[] frame( byte[] data, int flags )
+    {
+        byte[] result = data;
+        if ( flags != 0 || startsWithMagic( data ) ) {
+            result = new byte[FRAME_HEADER_LEN + data.length];
+            result[0] = MAGIC[0];
+            result[1] = MAGIC[1];
+            result[2] = (byte)flags;
+            System.arraycopy( data, 0, result, FRAME_HEADER_LEN, data.length );
+        }
+        return result;
+    }
+
+    /**
+     * Undoes frame(), given the output of join()
+     */
+    static Frame unframe( byte[] msg )
+    {
+        Frame result;
+        if ( msg.length >= FRAME_HEADER_LEN && startsWithMagic( msg )
+             && 0 == (msg[2] & FLAG_FRAG) ) {
+            byte[] body = new byte[msg.length - FRAME_HEADER_LEN];
+            System.arraycopy( msg, FRAME_HEADER_LEN, body, 0, body.length );
+            result = new Frame( msg[2] & 0xFF, body );
+        } else {
+            result = new Frame( 0, msg );
+        }
+        return result;
+    }
+
+    // Keep the pieces of up to 64K of messages for up to 15 minutes
+    private static final Reassembler sReassembler =
+        new Reassembler( 64 * 1024, 15 * 60 * 1000 );
+    // Random start, so after a restart we don't reuse IDs whose pieces the
+    // peer may still be holding
+    private static AtomicInteger sNextID = new AtomicInteger( new Random().nextInt() );
+
+    /**
+     * @param data output of frame()
+     *
+     * @return what to pass to sendDataMessage(), in order.
+     *
+     * @throws IllegalArgumentException if data's longer than MAX_MESSAGE
+     */
+    static byte[][] split( byte[] data )
+    {
+        byte[][] result;
+        if ( data.length <= MAX_PDU ) {
+            result = new byte[][] { data };
+        } else if ( data.length > MAX_MESSAGE ) {
+            throw new IllegalArgumentException( "message too long: " + data.length );
+        } else {
+            int count = Math.max( 1, (data.length + MAX_FRAG_DATA - 1) / MAX_FRAG_DATA );
+            int msgID = sNextID.incrementAndGet();
+            int crc = crcOf( data, 0, data.length );
+
+            result = new byte[count][];
+            for ( int ii = 0; ii < count; ++ii ) {
+                int offset = ii * MAX_FRAG_DATA;
+                int len = Math.min( MAX_FRAG_DATA, data.length - offset );
+                byte[] frag = new byte[FRAG_HEADER_LEN + len];
+                frag[0] = MAGIC[0];
+                frag[1] = MAGIC[1];
+                frag[2] = FLAG_FRAG;
+                frag[3] = (byte)(msgID >> 8);
+                frag[4] = (byte)msgID;
+                frag[5] = (byte)ii;
+                frag[6] = (byte)count;
+                frag[7] = (byte)(crc >> 24);
+                frag[8] = (byte)(crc >> 16);
+                frag[9] = (byte)(crc >> 8);
+                frag[10] = (byte)crc;
+                System.arraycopy( data, offset, frag, FRAG_HEADER_LEN, len );
+                result[ii] = frag;
+            }
+            Log.d( TAG, "split(): " + data.length + " bytes into " + count + " frags" );
+        }
+        return result;
+    }
+
+    /**
+     * @return the framed message if pdu completes one, otherwise null
+     */
+    static byte[] join( String phone, short port, byte[] pdu )
+    {
+        byte[] result = pdu;
+        if ( pdu.length > FRAG_HEADER_LEN && startsWithMagic( pdu )
+             && FLAG_FRAG == pdu[2] ) {
+            int msgID = ((pdu[3] & 0xFF) << 8) | (pdu[4] & 0xFF);
+            int index = pdu[5] & 0xFF;
+            int count = pdu[6] & 0xFF;
+            int crc = ((pdu[7] & 0xFF) << 24) | ((pdu[8] & 0xFF) << 16)
+                | ((pdu[9] & 0xFF) << 8) | (pdu[10] & 0xFF);
+            byte[] part = new byte[pdu.length - FRAG_HEADER_LEN];
+            System.arraycopy( pdu, FRAG_HEADER_LEN, part, 0, part.length );
+
+            String key = phone + ":" + port + ":" + msgID;
+            byte[] whole = count == 1 ? part
+                : sReassembler.add( key, index, count, part );
+            if ( whole == null ) {
+                result = null;  // still waiting
+            } else if ( crc == crcOf( whole, 0, whole.length ) ) {
+                result = whole;
+            } else if ( count == 1 ) {
+                // Probably not ours after all: somebody else's message that
+                // happened to look like a fragment. Pass it on untouched.
+                Log.d( TAG, "join(): bad crc on single fragment; delivering as-is" );
+            } else {
+                Log.e( TAG, "join(" + key + "): bad crc; dropping" );
+                result = null;
+            }
+        }
+        return result;
+    }
+
+    private static boolean startsWithMagic( byte[] data )
+    {
+        return data.length >= MAGIC.length
+            && MAGIC[0] == data[0] && MAGIC[1] == data[1];
+    }
+
+    private static int crcOf( byte[] data, int offset, int len )
+    {
+        CRC32 crc = new CRC32();
+        crc.update( data, offset, len );
+        return (int)crc.getValue();
+    }
+}
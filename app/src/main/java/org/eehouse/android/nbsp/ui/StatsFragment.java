@@ -94,6 +94,29 @@ public class StatsFragment extends PageFragment {
                         .append(recs[ii].stats())
                         .append("\n");
                 }
+                long[] comp = mData.compressionFor( port );
+                if ( comp != null && comp[0] > 0 ) {
+                    sb.append( getString( R.string.stats_comp_fmt, comp[0], comp[1],
+                                          (100 * comp[1]) / comp[0] ) )
+                        .append("\n");
+                }
+                long dups = mData.duplicatesFor( port );
+                if ( 0 < dups ) {
+                    sb.append( getString( R.string.stats_dups_fmt, dups ) )
+                        .append("\n");
+                }
+                for ( boolean delivered : new boolean[] { false, true } ) {
+                    int count = mData.latencyCount( port, delivered );
+                    if ( 0 < count ) {
+                        int kind = delivered ? R.string.stats_latency_delivered
+                            : R.string.stats_latency_sent;
+                        sb.append( getString( R.string.stats_latency_fmt, getString( kind ),
+                                              mData.latencyFor( port, delivered, 50 ) / 1000.0,
+                                              mData.latencyFor( port, delivered, 99 ) / 1000.0,
+                                              count ) )
+                            .append("\n");
+                    }
+                }
                 sb.append("\n");
             }
 
@@ -25,6 +25,8 @@ import android.telephony.TelephonyManager;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
 
 import java.util.Arrays;
 import java.util.Random;
@@ -32,6 +34,7 @@ import java.util.Random;
 import org.eehouse.android.nbsp.BuildConfig;
 import org.eehouse.android.nbsp.NBSPApp;
 import org.eehouse.android.nbsp.R;
+import org.eehouse.android.nbsp.Transport;
 import org.eehouse.android.nbsplib.NBSProxy;
 
 public class TestFragment extends PageFragment {
@@ -51,6 +54,23 @@ public class TestFragment extends PageFragment {
                     }
                 } );
         setButtonText();
+
+        CheckBox loopSelf = (CheckBox)view.findViewById( R.id.loop_self );
+        loopSelf.setChecked( Transport.getLoopSelf() );
+        loopSelf.setOnCheckedChangeListener( new CompoundButton.OnCheckedChangeListener() {
+                @Override
+                public void onCheckedChanged( CompoundButton button, boolean checked ) {
+                    Transport.setLoopSelf( checked );
+                }
+            } );
+        CheckBox loopAll = (CheckBox)view.findViewById( R.id.loop_all );
+        loopAll.setChecked( Transport.getLoopAll() );
+        loopAll.setOnCheckedChangeListener( new CompoundButton.OnCheckedChangeListener() {
+                @Override
+                public void onCheckedChanged( CompoundButton button, boolean checked ) {
+                    Transport.setLoopAll( checked );
+                }
+            } );
     }
 
     // This works to update the phone number after permission's granted
@@ -0,0 +1,57 @@
+package org.eehouse.android.nbsp;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the *Bench JMH benchmarks, reporting ops/s and (via the GC
+ * profiler's gc.alloc.rate.norm) bytes allocated per op. Skipped unless
+ * asked for, as it takes minutes:
+ *
+ *   ./gradlew :app:testDebugUnitTest --tests '*BenchmarkRunner' -Dnbsp.bench=true
+ *
+ * Add -Dnbsp.bench.include=<regex> to run only some. Results are also
+ * written as JSON to app/build/reports/jmh/results.json.
+ *
+ * Runs in the test JVM rather than forking: Gradle's test workers don't
+ * give JMH a classpath it can fork with. That's also what lets it run
+ * under Robolectric, so the code benchmarked gets a working Log and the
+ * like. Compare numbers from the same machine and settings only.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BenchmarkRunner {
+
+    @Test
+    public void runBenchmarks() throws RunnerException
+    {
+        Assume.assumeTrue( Boolean.getBoolean( "nbsp.bench" ) );
+
+        File results = new File( "build/reports/jmh/results.json" );
+        results.getParentFile().mkdirs();
+        Options opts = new OptionsBuilder()
+            .include( System.getProperty( "nbsp.bench.include", ".*Bench\\." ) )
+            .forks( 0 )
+            .warmupIterations( 3 )
+            .warmupTime( TimeValue.seconds( 1 ) )
+            .measurementIterations( 5 )
+            .measurementTime( TimeValue.seconds( 1 ) )
+            .timeUnit( TimeUnit.SECONDS )
+            .addProfiler( GCProfiler.class )
+            .resultFormat( ResultFormatType.JSON )
+            .result( results.getPath() )
+            .build();
+        new Runner( opts ).run();
+    }
+}
@@ -0,0 +1,79 @@
+package org.eehouse.android.nbsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Base64;
+import java.util.Random;
+
+import org.eehouse.android.nbsplib.Envelope;
+import org.eehouse.android.nbsplib.NBSProxy;
+
+/**
+ * How client data crosses between NBSProxy.send() and
+ * RequestReceiver.handleSend(): legacy clients Base64 it into a String
+ * extra, current ones wrap it in an Envelope. Plus the version check every
+ * intent gets, for both kinds.
+ *
+ * android.util.Base64 is only a stub off-device, so java.util.Base64 stands
+ * in for it. With NO_WRAP the two produce the same thing.
+ */
+@State(Scope.Thread)
+public class CodecBench {
+    @Param({ "32", "128", "1024" })
+    public int size;
+
+    private byte[] mData;
+    private String mAsBase64;
+    private byte[] mAsEnvelope;
+    private int mProto;
+
+    @Setup
+    public void setUp()
+    {
+        mData = new byte[size];
+        new Random( 1 ).nextBytes( mData );
+        mAsBase64 = Base64.getEncoder().encodeToString( mData );
+        mAsEnvelope = new Envelope( (short)4369, mData ).toBytes();
+        mProto = org.eehouse.android.nbsplib.BuildConfig.NBSP_PROTO;
+    }
+
+    @Benchmark
+    public String base64Encode()
+    {
+        return Base64.getEncoder().encodeToString( mData );
+    }
+
+    @Benchmark
+    public byte[] base64Decode()
+    {
+        return Base64.getDecoder().decode( mAsBase64 );
+    }
+
+    @Benchmark
+    public byte[] envelopeEncode()
+    {
+        return new Envelope( (short)4369, mData ).toBytes();
+    }
+
+    @Benchmark
+    public Envelope envelopeDecode()
+    {
+        return Envelope.fromBytes( mAsEnvelope );
+    }
+
+    @Benchmark
+    public int versionOkProto()
+    {
+        return NBSProxy.versionOk( mProto, null );
+    }
+
+    @Benchmark
+    public int versionOkString()
+    {
+        return NBSProxy.versionOk( 0, org.eehouse.android.nbsplib.BuildConfig.NBSP_VERSION );
+    }
+}
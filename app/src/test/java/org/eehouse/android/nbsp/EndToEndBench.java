@@ -0,0 +1,381 @@
+package org.eehouse.android.nbsp;
+
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.telephony.TelephonyManager;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eehouse.android.nbsplib.NBSProxy;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Throughput and latency of the whole round trip, with this process as
+ * both client and NBSProxy app:
+ *
+ *   NBSProxy.send() -> RequestReceiver -> Outbox and Scheduler ->
+ *   Transport (a SimNetwork, standing in for the radio, with no latency or
+ *   loss) -> NBSReceiver -> PortReg.lookup() -> RX intent ->
+ *   NBSProxy.onReceive() -> Callbacks.onDataReceived()
+ *
+ * The Scheduler's rate limit is lifted, since otherwise it's all this
+ * would measure; sends still queue and wait their turn with it.
+ *
+ * Sweeps payload size, the number of clients registered on the port (each
+ * gets every message, so each costs a broadcast and a delivery) and
+ * offered rate. For each combination it reports deliveries/s, latency
+ * percentiles, heap growth, and what was written to the database per
+ * message, by StatsDB and the Outbox both. Results are also written as
+ * JSON to app/build/reports/e2e/results.json.
+ *
+ * Skipped unless asked for, like BenchmarkRunner:
+ *
+ *   ./gradlew :app:testDebugUnitTest --tests '*EndToEndBench' -Dnbsp.bench=true
+ *
+ * Robolectric runs everything "main thread" on this one, so this measures
+ * the code, not Android's broadcast delivery. Compare runs from the same
+ * machine only.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class EndToEndBench {
+    private static final String ME = "+15550000100";
+    private static final int[] SIZES = { 16, 100, 600 }; // 600 takes five PDUs
+    private static final int[] CLIENTS = { 1, 4 };
+    private static final int[] RATES = { 0, 100 };      // msgs/s; 0: flat out
+    private static final int COUNT = 500;
+    private static final int WARMUP_COUNT = 200;
+    private static final long RUN_TIMEOUT_MS = 60 * 1000;
+
+    private Bus mBus;
+    private Receiver mReceiver;
+    private SimNetwork mNet;
+    private short mNextPort;
+
+    @Before
+    public void setUp()
+    {
+        Assume.assumeTrue( Boolean.getBoolean( "nbsp.bench" ) );
+
+        Context app = RuntimeEnvironment.application;
+        shadowOf( RuntimeEnvironment.application )
+            .grantPermissions( Manifest.permission.SEND_SMS );
+        shadowOf( (TelephonyManager)app.getSystemService( Context.TELEPHONY_SERVICE ) )
+            .setPhoneType( TelephonyManager.PHONE_TYPE_GSM );
+
+        // Everything runs when pump() says so
+        ShadowLooper.pauseMainLooper();
+        mBus = new Bus( app );
+        mNextPort = Short.valueOf( app.getString( R.string.nbsp_port ) );
+
+        SimNetwork.Config config = new SimNetwork.Config();
+        config.latencyMedianMS = 0;
+        mNet = new SimNetwork( mBus, config );
+        mNet.addEndpoint( ME, new SimRadio( mBus ) );
+        Transport.setRadio( new SimTransport( mNet, ME, true ) );
+        Scheduler.setLimits( Integer.MAX_VALUE, 1 );
+
+        mReceiver = new Receiver();
+    }
+
+    @After
+    public void tearDown()
+    {
+        Transport.setRadio( null );
+        Scheduler.reset();
+        Outbox.reset();
+        StatsDB.reset();
+    }
+
+    @Test
+    public void sweep() throws Exception
+    {
+        run( 100, 1, 0, WARMUP_COUNT ); // JIT, DB creation, etc.
+
+        JSONArray runs = new JSONArray();
+        for ( int size : SIZES ) {
+            for ( int clients : CLIENTS ) {
+                for ( int rate : RATES ) {
+                    runs.put( run( size, clients, rate, COUNT ) );
+                }
+            }
+        }
+
+        JSONObject report = new JSONObject()
+            .put( "date", new Date().toString() )
+            .put( "nbspVersion", org.eehouse.android.nbsplib.BuildConfig.NBSP_VERSION )
+            .put( "runs", runs )
+            ;
+        File file = new File( "build/reports/e2e/results.json" );
+        file.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter( file );
+        try {
+            writer.write( report.toString( 2 ) );
+        } finally {
+            writer.close();
+        }
+    }
+
+    // Each run gets its own port, so the clients registered on it are
+    // exactly the ones it asked for
+    private JSONObject run( int size, int clients, int rate, int count )
+        throws InterruptedException, JSONException
+    {
+        short port = mNextPort++;
+        String[] appIDs = new String[clients];
+        appIDs[0] = mBus.getPackageName();
+        for ( int ii = 1; ii < clients; ++ii ) {
+            appIDs[ii] = appIDs[0] + ".e2e.client" + ii;
+        }
+        for ( String appID : appIDs ) {
+            PortReg.register( mBus, port, appID, false, null, 0 );
+        }
+        NBSProxy.register( mBus, port, appIDs[0], mReceiver );
+        waitForLookup( port );
+        pump();
+        drainStatsDB();
+
+        mReceiver.reset( count );
+        long heapBefore = usedHeap();
+        long rowsBefore = StatsDB.getRowsWritten();
+        long bytesBefore = StatsDB.getBytesWritten();
+
+        long expected = (long)count * clients;
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos( RUN_TIMEOUT_MS );
+        int sent = 0;
+        while ( mReceiver.mDelivered < expected && System.nanoTime() < deadline ) {
+            long now = System.nanoTime();
+            if ( sent < count
+                 && (rate == 0 || now - start >= sent * 1000000000L / rate) ) {
+                NBSProxy.send( mBus, ME, port, mReceiver.makePayload( sent, size ) );
+                ++sent;
+            }
+            if ( !pump() ) {
+                // Waiting on StatsDB's thread, or for the next send
+                LockSupport.parkNanos( 50 * 1000 );
+            }
+        }
+        long elapsed = mReceiver.mLastAt - start;
+
+        // The last sent-statuses' Outbox deletes
+        pump();
+        drainStatsDB();
+        long rows = StatsDB.getRowsWritten() - rowsBefore;
+        long bytes = StatsDB.getBytesWritten() - bytesBefore;
+        long heapGrowth = usedHeap() - heapBefore;
+
+        long[] latencies = Arrays.copyOf( mReceiver.mLatencies,
+                                          (int)mReceiver.mDelivered );
+        Arrays.sort( latencies );
+        double secs = Math.max( 1, elapsed ) / 1e9;
+        return new JSONObject()
+            .put( "payloadBytes", size )
+            .put( "clients", clients )
+            .put( "offeredRate", rate )
+            .put( "sent", sent )
+            .put( "delivered", mReceiver.mDelivered )
+            .put( "expected", expected )
+            .put( "seconds", secs )
+            .put( "deliveriesPerSec", mReceiver.mDelivered / secs )
+            .put( "msgsPerSec", mReceiver.mDelivered / (double)clients / secs )
+            .put( "p50Ms", percentile( latencies, 50 ) )
+            .put( "p99Ms", percentile( latencies, 99 ) )
+            .put( "p999Ms", percentile( latencies, 99.9 ) )
+            .put( "heapGrowthBytes", heapGrowth )
+            .put( "dbRowsWritten", rows )
+            .put( "dbBytesWritten", bytes )
+            .put( "dbRowsPerMsg", rows / (double)Math.max( 1, sent ) )
+            .put( "dbBytesPerPayloadByte", bytes / (double)Math.max( 1, sent * size ) )
+            ;
+    }
+
+    // Run whatever's due. Returns true if anything was.
+    private boolean pump()
+    {
+        int before = mBus.mHandled;
+        mNet.run( 0 );
+        ShadowLooper.idleMainLooper();
+        SimNetwork.idleSenders( 0 );
+        return before != mBus.mHandled;
+    }
+
+    private void waitForLookup( short port ) throws InterruptedException
+    {
+        final CountDownLatch latch = new CountDownLatch( 1 );
+        PortReg.lookup( mBus, new short[] { port }, new PortReg.OnHaveAppIDs() {
+                @Override
+                public void haveAppIDs( Map<Short, String[]> appIDs ) {
+                    latch.countDown();
+                }
+            } );
+        assertTrue( latch.await( 10, TimeUnit.SECONDS ) );
+    }
+
+    private void drainStatsDB() throws InterruptedException
+    {
+        final CountDownLatch latch = new CountDownLatch( 1 );
+        StatsDB.flush( mBus, new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            } );
+        assertTrue( latch.await( 30, TimeUnit.SECONDS ) );
+    }
+
+    private static long usedHeap()
+    {
+        Runtime rt = Runtime.getRuntime();
+        for ( int ii = 0; ii < 3; ++ii ) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static double percentile( long[] sorted, double percent )
+    {
+        double result = 0;
+        if ( 0 < sorted.length ) {
+            int indx = (int)Math.ceil( percent / 100 * sorted.length ) - 1;
+            indx = Math.max( 0, Math.min( indx, sorted.length - 1 ) );
+            result = sorted[indx] / 1e6;
+        }
+        return result;
+    }
+
+    /**
+     * The client: each payload starts with its sequence number, which is
+     * how a delivery's matched to its send time.
+     */
+    private static class Receiver implements NBSProxy.Callbacks {
+        private long[] mSentAt;
+        long[] mLatencies;
+        long mDelivered;
+        long mLastAt;
+
+        void reset( int count )
+        {
+            mSentAt = new long[count];
+            mLatencies = new long[count * CLIENTS[CLIENTS.length - 1]];
+            mDelivered = 0;
+            mLastAt = 0;
+        }
+
+        byte[] makePayload( int seq, int size )
+        {
+            byte[] result = new byte[Math.max( 4, size )];
+            for ( int ii = 4; ii < result.length; ++ii ) {
+                result[ii] = (byte)(seq + ii);
+            }
+            result[0] = (byte)(seq >> 24);
+            result[1] = (byte)(seq >> 16);
+            result[2] = (byte)(seq >> 8);
+            result[3] = (byte)seq;
+            mSentAt[seq] = System.nanoTime();
+            return result;
+        }
+
+        @Override
+        public void onDataReceived( short port, String fromPhone, byte[] data )
+        {
+            long now = System.nanoTime();
+            int seq = ((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16)
+                | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+            if ( mSentAt != null && 0 <= seq && seq < mSentAt.length
+                 && mDelivered < mLatencies.length ) {
+                mLatencies[(int)mDelivered++] = now - mSentAt[seq];
+                mLastAt = now;
+            }
+        }
+
+        @Override
+        public void onProxyAppLaunched() {}
+        @Override
+        public void onPermissionsGranted() {}
+        @Override
+        public void onRegResponse( boolean appReached, boolean needsInitialLaunch ) {}
+    }
+
+    /**
+     * Stands in for the system's broadcast delivery between the two halves
+     * of the round trip: intents for the NBSProxy app go to a
+     * RequestReceiver, and those for clients to an NBSProxy, each on the
+     * main thread as they would be. Anything else, including SimNetwork's
+     * send statuses, is left to Robolectric.
+     */
+    private static class Bus extends ContextWrapper {
+        private final Handler mHandler = new Handler( Looper.getMainLooper() );
+        private final RequestReceiver mProxy = new RequestReceiver();
+        private final NBSProxy mClient = new NBSProxy();
+        volatile int mHandled;
+
+        Bus( Context base )
+        {
+            super( base );
+        }
+
+        @Override
+        public void sendBroadcast( final Intent intent )
+        {
+            final Context context = this;
+            String type = intent.getType();
+            if ( "text/nbsdata_tx".equals( type ) ) {
+                mHandler.post( new Runnable() {
+                        @Override
+                        public void run() {
+                            ++mHandled;
+                            mProxy.onReceive( context, intent );
+                        }
+                    } );
+            } else if ( "text/nbsdata_rx".equals( type ) ) {
+                mHandler.post( new Runnable() {
+                        @Override
+                        public void run() {
+                            ++mHandled;
+                            mClient.onReceive( context, intent );
+                        }
+                    } );
+            } else {
+                super.sendBroadcast( intent );
+            }
+        }
+
+        @Override
+        public void sendOrderedBroadcast( Intent intent, String permission,
+                                          BroadcastReceiver resultReceiver,
+                                          Handler scheduler, int initialCode,
+                                          String initialData, Bundle initialExtras )
+        {
+            ++mHandled;
+            super.sendOrderedBroadcast( intent, permission, resultReceiver, scheduler,
+                                        initialCode, initialData, initialExtras );
+        }
+    }
+}
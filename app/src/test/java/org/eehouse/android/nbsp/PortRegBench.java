@@ -0,0 +1,58 @@
+package org.eehouse.android.nbsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * PortReg.lookup() once the registrations are loaded, which is every
+ * time but the first: NBSReceiver calls it for every incoming intent.
+ * The maps are filled in directly rather than loaded from StatsDB.
+ */
+@State(Scope.Thread)
+public class PortRegBench {
+    private static final short PORT = 4369;
+
+    private short[] mPorts = { PORT };
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        HashMap<Short, HashSet<String>> map = new HashMap<>();
+        for ( short port = PORT; port < PORT + 8; ++port ) {
+            HashSet<String> appIDs = new HashSet<>();
+            for ( int ii = 0; ii < 3; ++ii ) {
+                appIDs.add( "org.example.app" + port + "_" + ii );
+            }
+            map.put( port, appIDs );
+        }
+        setStatic( "sMap", map );
+        setStatic( "sLegacy", new HashSet<String>() );
+        setStatic( "sDicts", new HashMap<Short, byte[]>() );
+    }
+
+    @Benchmark
+    public void lookup( final Blackhole bh )
+    {
+        PortReg.lookup( null, mPorts, new PortReg.OnHaveAppIDs() {
+                @Override
+                public void haveAppIDs( Map<Short, String[]> appIDs ) {
+                    bh.consume( appIDs );
+                }
+            } );
+    }
+
+    private static void setStatic( String name, Object value ) throws Exception
+    {
+        Field field = PortReg.class.getDeclaredField( name );
+        field.setAccessible( true );
+        field.set( null, value );
+    }
+}
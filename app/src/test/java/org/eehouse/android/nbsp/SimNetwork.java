@@ -0,0 +1,291 @@
+package org.eehouse.android.nbsp;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Looper;
+import android.telephony.SmsManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * A pretend GSM network connecting any number of phone numbers, for
+ * driving NBSProxy without SIMs. Each Endpoint is handed the user data of
+ * the PDUs addressed to it, as a phone's radio would hand them to
+ * NBSReceiver.
+ *
+ * Time is virtual: nothing happens until run() is called, and then events
+ * happen in time order as fast as they can be processed, so a test of an
+ * hour's traffic takes as long as the code under test needs. Latencies
+ * reported are in that virtual time. Given the same seed and the same
+ * sends, a run is the same every time.
+ *
+ * What it models, all set in Config:
+ *  - latency: log-normal around a median, so there's a long tail
+ *  - reordering: some PDUs held back extra, so later ones overtake them
+ *  - loss: PDUs reported sent that never arrive (or get a delivery report)
+ *  - send failures: PDUs whose sent-status is an error
+ *  - duplication: PDUs delivered twice, with the same timestamp, as
+ *    carriers do
+ *  - a carrier rate limit: each sender's PDUs beyond it wait their turn
+ */
+class SimNetwork {
+
+    interface Endpoint {
+        /**
+         * @param timestamp service center timestamp, the same for a PDU
+         * and any duplicate of it
+         */
+        void onPdu( String from, short port, byte[] userData, long timestamp );
+    }
+
+    static class Config {
+        long latencyMedianMS = 3000;
+        double latencySigma = 0.5;  // of the underlying normal
+        double reorderProb = 0;
+        long reorderMaxMS = 10 * 1000;
+        double lossProb = 0;
+        double sendFailProb = 0;
+        double dupProb = 0;
+        int carrierPerMinute = 0;   // 0 means unlimited
+        long seed = 1;
+    }
+
+    private static class Event implements Comparable<Event> {
+        final long when;
+        final long seq;
+        final Runnable action;
+        Event( long when, long seq, Runnable action )
+        {
+            this.when = when;
+            this.seq = seq;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo( Event other )
+        {
+            int result = Long.compare( when, other.when );
+            if ( result == 0 ) {
+                result = Long.compare( seq, other.seq );
+            }
+            return result;
+        }
+    }
+
+    private final Context mContext;
+    private final Config mConfig;
+    private final Random mRandom;
+    private final Map<String, Endpoint> mEndpoints = new HashMap<>();
+    // sender -> when its next PDU may leave, for the carrier rate limit
+    private final Map<String, Long> mNextSlot = new HashMap<>();
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<>();
+    private long mNow = System.currentTimeMillis();
+    private long mStart = mNow;
+    private long mSeq;
+
+    private int mSubmitted;
+    private int mDelivered;
+    private int mLost;
+    private int mFailed;
+    private int mDuplicated;
+    private List<Long> mLatencies = new ArrayList<>();
+
+    SimNetwork( Context context, Config config )
+    {
+        mContext = context;
+        mConfig = config;
+        mRandom = new Random( config.seed );
+    }
+
+    void addEndpoint( String phone, Endpoint endpoint )
+    {
+        mEndpoints.put( phone, endpoint );
+    }
+
+    synchronized long now() { return mNow; }
+
+    /**
+     * A PDU leaves from for to. sent and delivery, either of which may be
+     * null, are fired as SmsManager would.
+     */
+    synchronized void submit( final String from, final String to, final short port,
+                              final byte[] pdu, final PendingIntent sent,
+                              final PendingIntent delivery )
+    {
+        ++mSubmitted;
+        final long submitted = mNow;
+        long leaves = mNow;
+        if ( 0 < mConfig.carrierPerMinute ) {
+            Long slot = mNextSlot.get( from );
+            if ( slot != null && slot > leaves ) {
+                leaves = slot;
+            }
+            mNextSlot.put( from, leaves + 60 * 1000 / mConfig.carrierPerMinute );
+        }
+
+        if ( mRandom.nextDouble() < mConfig.sendFailProb ) {
+            ++mFailed;
+            fireAt( leaves, sent, SmsManager.RESULT_ERROR_GENERIC_FAILURE );
+        } else {
+            fireAt( leaves, sent, Activity.RESULT_OK );
+            if ( mRandom.nextDouble() < mConfig.lossProb ) {
+                ++mLost;
+            } else {
+                final Endpoint endpoint = mEndpoints.get( to );
+                int copies = mRandom.nextDouble() < mConfig.dupProb ? 2 : 1;
+                for ( int ii = 0; ii < copies; ++ii ) {
+                    final boolean first = ii == 0;
+                    long arrives = leaves + sampleLatency();
+                    schedule( arrives, new Runnable() {
+                            @Override
+                            public void run() {
+                                if ( first ) {
+                                    ++mDelivered;
+                                    mLatencies.add( mNow - submitted );
+                                } else {
+                                    ++mDuplicated;
+                                }
+                                if ( endpoint != null ) {
+                                    endpoint.onPdu( from, port, pdu, submitted );
+                                }
+                            }
+                        } );
+                    if ( first ) {
+                        fireAt( arrives, delivery, Activity.RESULT_OK );
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Process everything, including whatever's submitted meanwhile, until
+     * nothing's left or maxMS of virtual time has passed.
+     */
+    void run( long maxMS )
+    {
+        long end = now() + maxMS;
+        for ( ; ; ) {
+            Event event;
+            synchronized ( this ) {
+                event = mEvents.peek();
+                if ( event == null || event.when > end ) {
+                    break;
+                }
+                mEvents.remove();
+                mNow = Math.max( mNow, event.when );
+            }
+            event.action.run();
+        }
+    }
+
+    synchronized boolean isIdle() { return mEvents.isEmpty(); }
+
+    /**
+     * Run what's been posted, over the last elapsedMS, to the threads that
+     * send over a radio: the Scheduler's and the Outbox's. Robolectric
+     * only runs them when told to, and then on the caller's thread.
+     */
+    static void idleSenders( long elapsedMS )
+    {
+        Looper[] loopers = { Scheduler.getLooper(), Outbox.getLooper() };
+        for ( Looper looper : loopers ) {
+            if ( looper != null ) {
+                shadowOf( looper ).idle( elapsedMS );
+            }
+        }
+    }
+
+    synchronized int getSubmitted() { return mSubmitted; }
+    synchronized int getDelivered() { return mDelivered; }
+    synchronized int getLost() { return mLost; }
+    synchronized int getFailed() { return mFailed; }
+    synchronized int getDuplicated() { return mDuplicated; }
+    synchronized long getElapsed() { return mNow - mStart; }
+
+    /**
+     * @return latency, submit to arrival, that percent of delivered PDUs
+     * beat
+     */
+    synchronized long getLatency( double percent )
+    {
+        long result = 0;
+        if ( 0 < mLatencies.size() ) {
+            List<Long> sorted = new ArrayList<>( mLatencies );
+            Collections.sort( sorted );
+            int indx = (int)Math.ceil( percent / 100 * sorted.size() ) - 1;
+            result = sorted.get( Math.max( 0, Math.min( indx, sorted.size() - 1 ) ) );
+        }
+        return result;
+    }
+
+    synchronized String summary()
+    {
+        double secs = Math.max( 1, getElapsed() ) / 1000.0;
+        return String.format( "submitted %d, delivered %d (+%d dups), lost %d, "
+                              + "failed %d; %.1f PDUs/s; p50 %dms, p99 %dms, "
+                              + "p99.9 %dms",
+                              mSubmitted, mDelivered, mDuplicated, mLost,
+                              mFailed, mDelivered / secs, getLatency( 50 ),
+                              getLatency( 99 ), getLatency( 99.9 ) );
+    }
+
+    // Must hold lock on this
+    private long sampleLatency()
+    {
+        double latency = mConfig.latencyMedianMS
+            * Math.exp( mConfig.latencySigma * mRandom.nextGaussian() );
+        if ( mRandom.nextDouble() < mConfig.reorderProb ) {
+            latency += mRandom.nextDouble() * mConfig.reorderMaxMS;
+        }
+        return (long)latency;
+    }
+
+    // Must hold lock on this. Robolectric's PendingIntent.send() drops the
+    // result code, so this does what the system would: an ordered
+    // broadcast of the intent, starting with the result, to a new instance
+    // of the receiver it names.
+    private void fireAt( long when, final PendingIntent pending, final int result )
+    {
+        if ( pending != null ) {
+            schedule( when, new Runnable() {
+                    @Override
+                    public void run() {
+                        Intent intent = shadowOf( pending ).getSavedIntent();
+                        mContext.sendOrderedBroadcast( intent, null,
+                                                       newReceiver( intent ),
+                                                       null, result, null, null );
+                    }
+                } );
+        }
+    }
+
+    private static BroadcastReceiver newReceiver( Intent intent )
+    {
+        BroadcastReceiver result;
+        try {
+            result = (BroadcastReceiver)Class
+                .forName( intent.getComponent().getClassName() ).newInstance();
+        } catch ( Exception ex ) {
+            throw new IllegalStateException( "can't deliver " + intent, ex );
+        }
+        return result;
+    }
+
+    // Must hold lock on this
+    private void schedule( long when, Runnable action )
+    {
+        mEvents.add( new Event( when, mSeq++, action ) );
+    }
+}
@@ -0,0 +1,198 @@
+package org.eehouse.android.nbsp;
+
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eehouse.android.nbsplib.Envelope;
+import org.eehouse.android.nbsplib.NBSProxy;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Sends messages from this device to a phone that echoes them back, over a
+ * SimNetwork that loses, duplicates and reorders, and checks that the
+ * client registered here gets each one that made it exactly once.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SimNetworkTest {
+    private static final String TAG = SimNetworkTest.class.getSimpleName();
+    private static final String ME = "+15550000100";
+    private static final String PEER = "+15550000200";
+    private static final String CLIENT = "org.eehouse.android.nbsp.simclient";
+    private static final int COUNT = 200;
+
+    private Context mContext;
+    private short mPort;
+
+    @Before
+    public void setUp() throws InterruptedException
+    {
+        mContext = RuntimeEnvironment.application;
+        mPort = Short.valueOf( mContext.getString( R.string.nbsp_port ) );
+        PortReg.register( mContext, mPort, CLIENT, false, null, 0 );
+
+        // Queued behind the registration, so done means it's done
+        final CountDownLatch latch = new CountDownLatch( 1 );
+        PortReg.lookup( mContext, new short[] { mPort }, new PortReg.OnHaveAppIDs() {
+                @Override
+                public void haveAppIDs( Map<Short, String[]> appIDs ) {
+                    latch.countDown();
+                }
+            } );
+        assertTrue( latch.await( 10, TimeUnit.SECONDS ) );
+    }
+
+    @After
+    public void tearDown()
+    {
+        Transport.setRadio( null );
+        Scheduler.reset();
+        Outbox.reset();
+        StatsDB.reset();
+    }
+
+    @Test
+    public void echoSurvivesLossDupsAndReordering() throws InterruptedException
+    {
+        SimNetwork.Config config = new SimNetwork.Config();
+        config.lossProb = 0.05;
+        config.dupProb = 0.1;
+        config.reorderProb = 0.2;
+        config.carrierPerMinute = 600;
+        final SimNetwork net = new SimNetwork( mContext, config );
+
+        final SimRadio radio = new SimRadio( mContext );
+        final Set<ByteBuffer> arrived = new HashSet<>();
+        net.addEndpoint( ME, new SimNetwork.Endpoint() {
+                @Override
+                public void onPdu( String from, short port, byte[] userData,
+                                   long timestamp ) {
+                    arrived.add( ByteBuffer.wrap( userData ) );
+                    radio.onPdu( from, port, userData, timestamp );
+                }
+            } );
+        // Drops duplicates as its NBSProxy would; otherwise they'd come
+        // back with new timestamps and be new messages
+        final Set<List<Object>> echoed = new HashSet<>();
+        net.addEndpoint( PEER, new SimNetwork.Endpoint() {
+                @Override
+                public void onPdu( String from, short port, byte[] userData,
+                                   long timestamp ) {
+                    List<Object> key = Arrays.<Object>asList( timestamp,
+                                                              ByteBuffer.wrap( userData ) );
+                    if ( echoed.add( key ) ) {
+                        net.submit( PEER, from, port, userData, null, null );
+                    }
+                }
+            } );
+        Transport.setRadio( new SimTransport( net, ME, false ) );
+
+        Set<ByteBuffer> sent = new HashSet<>();
+        Random random = new Random( config.seed );
+        for ( int ii = 0; ii < COUNT; ++ii ) {
+            byte[] data = new byte[16 + random.nextInt( 64 )];
+            random.nextBytes( data );
+            sent.add( ByteBuffer.wrap( data ) );
+            RequestReceiver.sendNow( mContext, PEER, mPort, data, 0 );
+        }
+        net.run( 24 * 60 * 60 * 1000 );
+        assertTrue( net.isIdle() );
+
+        // Every message is one PDU, so each distinct one that got back
+        // should reach the client once, however many times it arrived
+        List<ByteBuffer> received = waitForRX( arrived.size() );
+        assertEquals( arrived.size(), received.size() );
+        assertEquals( arrived.size(), new HashSet<>( received ).size() );
+        assertTrue( sent.containsAll( received ) );
+        Log.d( TAG, net.summary() );
+    }
+
+    @Test
+    public void failedSendsAreRetriedThenReported() throws InterruptedException
+    {
+        SimNetwork.Config config = new SimNetwork.Config();
+        config.sendFailProb = 1;
+        SimNetwork net = new SimNetwork( mContext, config );
+        Transport.setRadio( new SimTransport( net, ME, true ) );
+        Outbox.setBackoff( 10, 10 );
+
+        int clientMsgID = 17;
+        RequestReceiver.sendNow( mContext, PEER, mPort, new byte[] { 1, 2, 3 },
+                                 0, CLIENT, clientMsgID );
+
+        // Retries wait in real time, then go via the Scheduler to the
+        // network, whose results come back on the main thread
+        List<NBSProxy.RESULT> results = new ArrayList<>();
+        long end = System.currentTimeMillis() + 10 * 1000;
+        while ( !results.contains( NBSProxy.RESULT.FAILED )
+                && System.currentTimeMillis() < end ) {
+            Thread.sleep( 20 );
+            SimNetwork.idleSenders( 20 );
+            net.run( 60 * 1000 );
+            ShadowLooper.idleMainLooper();
+            results = resultsFor( clientMsgID );
+        }
+        assertEquals( Outbox.MAX_ATTEMPTS, net.getSubmitted() );
+        assertEquals( Outbox.MAX_ATTEMPTS, net.getFailed() );
+        // The client hears of the first failure, then that it's given up
+        assertEquals( Arrays.asList( NBSProxy.RESULT.SEND_FAILED,
+                                     NBSProxy.RESULT.FAILED ), results );
+    }
+
+    private List<NBSProxy.RESULT> resultsFor( int clientMsgID )
+    {
+        List<NBSProxy.RESULT> result = new ArrayList<>();
+        for ( Intent intent : shadowOf( RuntimeEnvironment.application )
+                  .getBroadcastIntents() ) {
+            if ( CLIENT.equals( intent.getPackage() )
+                 && intent.hasExtra( NBSProxy.EXTRA_RESULT )
+                 && clientMsgID == intent.getIntExtra( NBSProxy.EXTRA_MSG_ID, 0 ) ) {
+                int ordinal = intent.getIntExtra( NBSProxy.EXTRA_RESULT, 0 );
+                result.add( NBSProxy.RESULT.values()[ordinal] );
+            }
+        }
+        return result;
+    }
+
+    // Forwarding happens on StatsDB's thread, so wait for it
+    private List<ByteBuffer> waitForRX( int expected ) throws InterruptedException
+    {
+        List<ByteBuffer> result = new ArrayList<>();
+        long end = System.currentTimeMillis() + 10 * 1000;
+        while ( result.size() < expected && System.currentTimeMillis() < end ) {
+            Thread.sleep( 50 );
+            ShadowLooper.idleMainLooper();
+            result.clear();
+            for ( Intent intent : shadowOf( RuntimeEnvironment.application )
+                      .getBroadcastIntents() ) {
+                if ( CLIENT.equals( intent.getPackage() )
+                     && intent.hasExtra( NBSProxy.EXTRA_ENVELOPE ) ) {
+                    byte[] bytes = intent.getByteArrayExtra( NBSProxy.EXTRA_ENVELOPE );
+                    result.add( ByteBuffer.wrap( Envelope.fromBytes( bytes ).getData() ) );
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,81 @@
+package org.eehouse.android.nbsp;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * The device under test's end of a SimNetwork: turns each PDU into the
+ * DATA_SMS_RECEIVED intent the platform would broadcast and hands it to
+ * NBSReceiver, so everything from SmsMessage parsing on is the real code.
+ */
+class SimRadio implements SimNetwork.Endpoint {
+    static final String ACTION = "android.intent.action.DATA_SMS_RECEIVED";
+
+    private final Context mContext;
+    private final NBSReceiver mReceiver = new NBSReceiver();
+
+    SimRadio( Context context )
+    {
+        mContext = context;
+    }
+
+    @Override
+    public void onPdu( String from, short port, byte[] userData, long timestamp )
+    {
+        byte[] pdu = makeDeliverPdu( from, port, userData, timestamp );
+        Intent intent = new Intent( ACTION )
+            .setData( Uri.parse( "sms://localhost:" + (port & 0xFFFF) ) )
+            .putExtra( "pdus", new Object[] { pdu } )
+            .putExtra( "format", "3gpp" )
+            ;
+        mReceiver.onReceive( mContext, intent );
+    }
+
+    /**
+     * Build a 3GPP TS 23.040 SMS-DELIVER carrying 8-bit data addressed to
+     * port, with no SMSC address.
+     */
+    static byte[] makeDeliverPdu( String from, short port, byte[] data,
+                                  long timestamp )
+    {
+        ByteArrayOutputStream bas = new ByteArrayOutputStream();
+        bas.write( 0 );                         // no SMSC
+        bas.write( 0x04 | 0x40 );               // SMS-DELIVER, no more msgs, UDHI
+
+        boolean intl = from.startsWith( "+" );
+        String digits = intl ? from.substring( 1 ) : from;
+        bas.write( digits.length() );
+        bas.write( intl ? 0x91 : 0x81 );
+        for ( int ii = 0; ii < digits.length(); ii += 2 ) {
+            int lo = digits.charAt( ii ) - '0';
+            int hi = ii + 1 < digits.length() ? digits.charAt( ii + 1 ) - '0' : 0xF;
+            bas.write( (hi << 4) | lo );
+        }
+
+        bas.write( 0 );                         // PID
+        bas.write( 0x04 );                      // DCS: 8-bit data
+
+        Calendar cal = Calendar.getInstance( TimeZone.getTimeZone( "UTC" ) );
+        cal.setTimeInMillis( timestamp );
+        int[] scts = { cal.get( Calendar.YEAR ) % 100, cal.get( Calendar.MONTH ) + 1,
+                       cal.get( Calendar.DAY_OF_MONTH ), cal.get( Calendar.HOUR_OF_DAY ),
+                       cal.get( Calendar.MINUTE ), cal.get( Calendar.SECOND ), 0 };
+        for ( int val : scts ) {
+            bas.write( ((val % 10) << 4) | (val / 10) );
+        }
+
+        // User data header: just the 16-bit application port IE
+        byte[] udh = { 0x05, 4, (byte)(port >> 8), (byte)port,
+                       (byte)(port >> 8), (byte)port };
+        bas.write( 1 + udh.length + data.length ); // UDL, in octets
+        bas.write( udh.length );
+        bas.write( udh, 0, udh.length );
+        bas.write( data, 0, data.length );
+        return bas.toByteArray();
+    }
+}
@@ -0,0 +1,36 @@
+package org.eehouse.android.nbsp;
+
+import android.app.PendingIntent;
+import android.content.Context;
+
+/**
+ * Sends through a SimNetwork instead of SmsManager. Install with
+ * Transport.setRadio().
+ *
+ * As radio, it's rate-limited by the Scheduler and retried by the Outbox,
+ * just like SMS, which makes for realistic tests but slow benchmarks:
+ * the Scheduler's limit is in real time. Otherwise PDUs go straight to
+ * the network.
+ */
+class SimTransport extends Transport {
+    private final SimNetwork mNet;
+    private final String mPhone;
+    private final boolean mRadio;
+
+    SimTransport( SimNetwork net, String myPhone, boolean asRadio )
+    {
+        mNet = net;
+        mPhone = myPhone;
+        mRadio = asRadio;
+    }
+
+    @Override
+    void send( Context context, String phone, short port, byte[] pdu,
+               PendingIntent sent, PendingIntent delivery )
+    {
+        mNet.submit( mPhone, phone, port, pdu, sent, delivery );
+    }
+
+    @Override
+    boolean isRadio() { return mRadio; }
+}
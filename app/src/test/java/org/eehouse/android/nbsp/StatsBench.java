@@ -0,0 +1,76 @@
+package org.eehouse.android.nbsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * The aggregation the Stats tab's IOData does with each HourRecord
+ * StatsDB loads (storing them is a single SQL statement now; see
+ * EndToEndBench for what that costs), and KVCodec on the sort of map
+ * PortReg keeps in StatsDB.
+ */
+@State(Scope.Thread)
+public class StatsBench {
+    private static final short[] PORTS = { 4369, 4370, 4371, 4372 };
+    private static final int HOURS = 24 * 7;
+
+    private StatsDB.HourRecord[] mWeek;
+    private HashMap<Short, HashSet<String>> mRegs;
+    private byte[] mRegsBytes;
+
+    @Setup
+    public void setUp()
+    {
+        mRegs = new HashMap<>();
+        for ( short port : PORTS ) {
+            HashSet<String> appIDs = new HashSet<>();
+            appIDs.add( "org.example.app" + port );
+            mRegs.put( port, appIDs );
+        }
+        mRegsBytes = KVCodec.encode( mRegs );
+
+        long thisHour = System.currentTimeMillis() / (1000 * 60 * 60);
+        mWeek = new StatsDB.HourRecord[PORTS.length * HOURS];
+        for ( int ii = 0; ii < mWeek.length; ++ii ) {
+            mWeek[ii] = makeRecord( PORTS[ii % PORTS.length], thisHour - ii / PORTS.length );
+        }
+    }
+
+    // A week's records for a few ports, as the Stats tab loads them
+    @Benchmark
+    public StatsDB.IOData ioDataAdd()
+    {
+        StatsDB.IOData data = new StatsDB.IOData();
+        for ( StatsDB.HourRecord rec : mWeek ) {
+            data.add( rec );
+        }
+        return data;
+    }
+
+    @Benchmark
+    public byte[] kvEncode()
+    {
+        return KVCodec.encode( mRegs );
+    }
+
+    @Benchmark
+    public Serializable kvDecode()
+    {
+        return KVCodec.decode( mRegsBytes );
+    }
+
+    private static StatsDB.HourRecord makeRecord( short port, long hour )
+    {
+        StatsDB.HourRecord rec = new StatsDB.HourRecord( port, true, 100 );
+        rec.hour = hour;
+        rec.countRX = 7;
+        rec.bytesRX = 700;
+        return rec;
+    }
+}
@@ -0,0 +1,24 @@
+package org.eehouse.android.nbsp;
+
+import android.content.pm.PackageInfo;
+
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * What Robolectric runs instead of NBSPApp: it looks for a Test-prefixed
+ * subclass of the manifest's Application. NBSPApp insists the NBSProxy app
+ * (itself) be installed, and Robolectric's own package has no install
+ * time, so give it one first.
+ */
+public class TestNBSPApp extends NBSPApp {
+    @Override
+    public void onCreate()
+    {
+        long now = System.currentTimeMillis();
+        PackageInfo info = shadowOf( getPackageManager() )
+            .getInternalMutablePackageInfo( getPackageName() );
+        info.firstInstallTime = now;
+        info.lastUpdateTime = now;
+        super.onCreate();
+    }
+}
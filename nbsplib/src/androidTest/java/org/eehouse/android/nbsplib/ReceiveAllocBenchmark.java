@@ -0,0 +1,87 @@
+package org.eehouse.android.nbsplib;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Counts what NBSProxy.onReceive() allocates per delivered message, on the
+ * main thread where it runs. The Intent's built once, as what the system
+ * allocates to deliver it isn't ours to save. Results go to logcat:
+ *
+ *   adb logcat -s ReceiveAllocBenchmark
+ *
+ * There's no "before" run: libraries older than 0.3 have no Envelope or
+ * EXTRA_ENVELOPE, so this won't build against them. Their Base64 path was
+ * measured once on the JVM instead, and the figures are in the log of the
+ * commit that added this note.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ReceiveAllocBenchmark {
+    private static final String TAG = ReceiveAllocBenchmark.class.getSimpleName();
+    private static final short PORT = 3344;
+    private static final int WARMUP = 1000;
+    private static final int COUNT = 10000;
+
+    @Test
+    public void allocsPerMessage() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final int[] received = { 0 };
+        NBSProxy.register( context, PORT, context.getPackageName(),
+                           new NBSProxy.Callbacks() {
+                               @Override
+                               public void onProxyAppLaunched() {}
+                               @Override
+                               public void onPermissionsGranted() {}
+                               @Override
+                               public void onRegResponse( boolean appReached,
+                                                          boolean needsInitialLaunch ) {}
+                               @Override
+                               public void onDataReceived( short port, String fromPhone,
+                                                           byte[] data ) {
+                                   ++received[0];
+                               }
+                           } );
+
+        final Intent intent = new Intent( Intent.ACTION_SEND )
+            .setType( "text/nbsdata_rx" )
+            .putExtra( NBSProxy.EXTRA_PROTO, BuildConfig.NBSP_PROTO )
+            .putExtra( NBSProxy.EXTRA_PHONE, "5551234" )
+            .putExtra( NBSProxy.EXTRA_ENVELOPE,
+                       new Envelope( PORT, new byte[100] ).toBytes() )
+            ;
+        final NBSProxy receiver = new NBSProxy();
+        final long[] counts = new long[2];
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync( new Runnable() {
+                @Override
+                public void run() {
+                    for ( int ii = 0; ii < WARMUP; ++ii ) {
+                        receiver.onReceive( context, intent );
+                    }
+                    Debug.resetThreadAllocCount();
+                    Debug.resetThreadAllocSize();
+                    Debug.startAllocCounting();
+                    for ( int ii = 0; ii < COUNT; ++ii ) {
+                        receiver.onReceive( context, intent );
+                    }
+                    Debug.stopAllocCounting();
+                    counts[0] = Debug.getThreadAllocCount();
+                    counts[1] = Debug.getThreadAllocSize();
+                }
+            } );
+
+        Log.i( TAG, String.format( "per message: %.2f allocations, %.1f bytes",
+                                   (double)counts[0] / COUNT,
+                                   (double)counts[1] / COUNT ) );
+        assertEquals( WARMUP + COUNT, received[0] );
+    }
+}
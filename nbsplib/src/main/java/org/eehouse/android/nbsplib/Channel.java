@@ -0,0 +1,170 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2019 by Eric House (eehouse@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.eehouse.android.nbsplib;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * A Messenger connection to the NBSProxy app's ProxyService. While it's up,
+ * sends and receives go over it instead of costing a broadcast (and a new
+ * receiver instance on the other end) apiece. While it's not, send() returns
+ * false and NBSProxy falls back to broadcasts.
+ */
+class Channel {
+    private static final String TAG = Channel.class.getSimpleName();
+
+    private static ServiceConnection sConn;
+    private static Messenger sReplyTo;
+    // Set only once the proxy's answered our hello, so we know it speaks
+    // our protocol version
+    private static volatile Messenger sService;
+
+    static synchronized void open( Context context, final String appID )
+    {
+        if ( sConn == null ) {
+            final Context appContext = context.getApplicationContext();
+            sReplyTo = new Messenger( new Handler( Looper.getMainLooper() ) {
+                    @Override
+                    public void handleMessage( Message msg ) {
+                        handleFromProxy( appContext, msg );
+                    }
+                } );
+
+            sConn = new ServiceConnection() {
+                    @Override
+                    public void onServiceConnected( ComponentName name, IBinder binder ) {
+                        Log.d( TAG, "onServiceConnected()" );
+                        Messenger service = new Messenger( binder );
+                        Message hello = makeMessage( NBSProxy.MSG_HELLO, appID );
+                        hello.replyTo = sReplyTo;
+                        try {
+                            service.send( hello );
+                        } catch ( RemoteException re ) {
+                            Log.e( TAG, "onServiceConnected(): " + re.getMessage() );
+                        }
+                    }
+
+                    @Override
+                    public void onServiceDisconnected( ComponentName name ) {
+                        Log.d( TAG, "onServiceDisconnected()" );
+                        sService = null;
+                    }
+                };
+
+            Intent intent = new Intent()
+                .setClassName( BuildConfig.NBSPROXY_APPLICATION_ID,
+                               NBSProxy.SERVICE_CLASS );
+            if ( !appContext.bindService( intent, sConn, Context.BIND_AUTO_CREATE ) ) {
+                // Probably an older NBSProxy without the service
+                Log.d( TAG, "open(): bindService() failed" );
+                close( appContext, appID );
+            }
+        }
+    }
+
+    static synchronized void close( Context context, String appID )
+    {
+        if ( sConn != null ) {
+            Messenger service = sService;
+            sService = null;
+            if ( service != null ) {
+                try {
+                    service.send( makeMessage( NBSProxy.MSG_BYE, appID ) );
+                } catch ( RemoteException re ) {
+                    Log.e( TAG, "close(): " + re.getMessage() );
+                }
+            }
+            try {
+                context.getApplicationContext().unbindService( sConn );
+            } catch ( IllegalArgumentException iae ) {
+                Log.e( TAG, "close(): " + iae.getMessage() );
+            }
+            sConn = null;
+        }
+    }
+
+    /**
+     * @return false if the channel's not up, meaning caller should
+     * broadcast instead
+     */
+    static boolean send( String appID, String phone, byte[] envelope,
+                         int coalesceMS )
+    {
+        boolean sent = false;
+        Messenger service = sService;
+        if ( service != null ) {
+            Message msg = makeMessage( NBSProxy.MSG_SEND, appID );
+            Bundle bundle = msg.getData();
+            bundle.putString( NBSProxy.EXTRA_PHONE, phone );
+            bundle.putByteArray( NBSProxy.EXTRA_ENVELOPE, envelope );
+            bundle.putInt( NBSProxy.EXTRA_COALESCE_MS, coalesceMS );
+            try {
+                service.send( msg );
+                sent = true;
+            } catch ( RemoteException re ) {
+                Log.e( TAG, "send(): " + re.getMessage() );
+                sService = null;
+            }
+        }
+        return sent;
+    }
+
+    private static Message makeMessage( int what, String appID )
+    {
+        Message msg = Message.obtain( null, what );
+        Bundle bundle = new Bundle();
+        bundle.putInt( NBSProxy.EXTRA_PROTO, BuildConfig.NBSP_PROTO );
+        bundle.putString( NBSProxy.EXTRA_APPID, appID );
+        msg.setData( bundle );
+        return msg;
+    }
+
+    private static void handleFromProxy( Context context, Message msg )
+    {
+        switch ( msg.what ) {
+        case NBSProxy.MSG_HELLO:
+            Log.d( TAG, "proxy said hello; channel's up" );
+            sService = msg.replyTo;
+            break;
+        case NBSProxy.MSG_DATA:
+            Bundle bundle = msg.getData();
+            Envelope envelope = Envelope
+                .fromBytes( bundle.getByteArray( NBSProxy.EXTRA_ENVELOPE ) );
+            String phone = bundle.getString( NBSProxy.EXTRA_PHONE );
+            if ( envelope != null && phone != null ) {
+                NBSProxy.deliver( context, phone, envelope );
+            }
+            break;
+        default:
+            Log.e( TAG, "handleFromProxy(): unexpected what: " + msg.what );
+        }
+    }
+}
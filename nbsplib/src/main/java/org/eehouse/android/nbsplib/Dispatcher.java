@@ -0,0 +1,264 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2019 by Eric House (eehouse@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.eehouse.android.nbsplib;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Hands received data to the listeners added with
+ * NBSProxy.addDataListener().
+ *
+ * Each listener has its own bounded queue, drained in order on its own
+ * Executor, so a slow one holds up nobody else. Incoming data's decoded and
+ * queued on a single background thread here, never the main one: that's
+ * the only thread an OVERFLOW.BLOCK listener can hold up.
+ */
+class Dispatcher {
+    private static final String TAG = Dispatcher.class.getSimpleName();
+
+    // A BLOCK listener's queue can hold up its producer no longer than
+    // this. A BroadcastReceiver's goAsync() result must be finished within
+    // about ten seconds.
+    private static final long BLOCK_MAX_MS = 1000 * 5;
+
+    // port -> its listeners. Lists are replaced, never modified, so
+    // dispatch() needn't lock.
+    private static Map<Short, List<Sink>> sSinks = new ConcurrentHashMap<>();
+    private static Handler sHandler;
+
+    private static class Item {
+        String phone;
+        byte[] data;
+        Item( String phone, byte[] data )
+        {
+            this.phone = phone;
+            this.data = data;
+        }
+    }
+
+    private static class Sink implements Runnable {
+        final short port;
+        final NBSProxy.DataListener listener;
+        private final Executor mExecutor;
+        private final int mCapacity;
+        private final NBSProxy.OVERFLOW mOverflow;
+        // Guarded by this
+        private ArrayDeque<Item> mQueue = new ArrayDeque<>();
+        private boolean mRunning;
+        private long mDropped;
+
+        Sink( short port, NBSProxy.DataListener listener, Executor executor,
+              int capacity, NBSProxy.OVERFLOW overflow )
+        {
+            this.port = port;
+            this.listener = listener;
+            mExecutor = executor;
+            mCapacity = Math.max( 1, capacity );
+            mOverflow = overflow;
+        }
+
+        void offer( String phone, byte[] data )
+        {
+            boolean start = false;
+            synchronized ( this ) {
+                if ( mQueue.size() >= mCapacity ) {
+                    switch ( mOverflow ) {
+                    case DROP_OLDEST:
+                        mQueue.removeFirst();
+                        ++mDropped;
+                        break;
+                    case BLOCK:
+                        waitForRoom();
+                        break;
+                    case REJECT:
+                        break;
+                    }
+                }
+
+                if ( mQueue.size() < mCapacity ) {
+                    mQueue.addLast( new Item( phone, data ) );
+                    if ( !mRunning ) {
+                        mRunning = true;
+                        start = true;
+                    }
+                } else {
+                    ++mDropped;
+                    Log.e( TAG, "offer(): queue for port " + port
+                           + " full; dropped " + mDropped + " so far" );
+                }
+            }
+
+            if ( start ) {
+                try {
+                    mExecutor.execute( this );
+                } catch ( RejectedExecutionException ree ) {
+                    Log.e( TAG, "offer(): executor rejected; dropping queue" );
+                    synchronized ( this ) {
+                        mDropped += mQueue.size();
+                        mQueue.clear();
+                        mRunning = false;
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        synchronized long getDropped() { return mDropped; }
+
+        // Must hold lock on this
+        private void waitForRoom()
+        {
+            long deadline = System.currentTimeMillis() + BLOCK_MAX_MS;
+            for ( long left = BLOCK_MAX_MS;
+                  mQueue.size() >= mCapacity && 0 < left;
+                  left = deadline - System.currentTimeMillis() ) {
+                try {
+                    wait( left );
+                } catch ( InterruptedException ie ) {
+                    break;
+                }
+            }
+        }
+
+        // Runs on the listener's Executor, one at a time, until the queue's
+        // empty
+        @Override
+        public void run()
+        {
+            for ( ; ; ) {
+                Item item;
+                synchronized ( this ) {
+                    item = mQueue.pollFirst();
+                    if ( item == null ) {
+                        mRunning = false;
+                    }
+                    notifyAll();
+                }
+                if ( item == null ) {
+                    break;
+                }
+                listener.onDataReceived( port, item.phone, item.data );
+            }
+        }
+    }
+
+    static void add( short port, NBSProxy.DataListener listener, Executor executor,
+                     int capacity, NBSProxy.OVERFLOW overflow )
+    {
+        synchronized ( sSinks ) {
+            List<Sink> sinks = new ArrayList<>();
+            List<Sink> cur = sSinks.get( port );
+            if ( cur != null ) {
+                for ( Sink sink : cur ) {
+                    if ( sink.listener != listener ) {
+                        sinks.add( sink );
+                    }
+                }
+            }
+            sinks.add( new Sink( port, listener, executor, capacity, overflow ) );
+            sSinks.put( port, sinks );
+        }
+    }
+
+    static void remove( short port, NBSProxy.DataListener listener )
+    {
+        synchronized ( sSinks ) {
+            List<Sink> cur = sSinks.get( port );
+            if ( cur != null ) {
+                List<Sink> sinks = new ArrayList<>();
+                for ( Sink sink : cur ) {
+                    if ( sink.listener != listener ) {
+                        sinks.add( sink );
+                    }
+                }
+                if ( sinks.isEmpty() ) {
+                    sSinks.remove( port );
+                } else {
+                    sSinks.put( port, sinks );
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if anybody's listening on any port
+     */
+    static boolean isActive()
+    {
+        return !sSinks.isEmpty();
+    }
+
+    static long getDropped( short port )
+    {
+        long result = 0;
+        List<Sink> sinks = sSinks.get( port );
+        if ( sinks != null ) {
+            for ( Sink sink : sinks ) {
+                result += sink.getDropped();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Queue data for each of port's listeners. Call via post().
+     *
+     * @return false if port has no listeners
+     */
+    static boolean dispatch( short port, String phone, byte[] data )
+    {
+        List<Sink> sinks = sSinks.get( port );
+        boolean result = sinks != null;
+        if ( result ) {
+            for ( Sink sink : sinks ) {
+                sink.offer( phone, data );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Run on the dispatching thread
+     */
+    static void post( Runnable runnable )
+    {
+        getHandler().post( runnable );
+    }
+
+    private static synchronized Handler getHandler()
+    {
+        if ( sHandler == null ) {
+            HandlerThread thread = new HandlerThread( TAG );
+            thread.start();
+            sHandler = new Handler( thread.getLooper() );
+        }
+        return sHandler;
+    }
+}
@@ -0,0 +1,134 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2019 by Eric House (eehouse@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.eehouse.android.nbsplib;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What a message looks like as it moves between a client app and the
+ * NBSProxy app, in either direction. It travels as a single byte[] extra:
+ * a fixed-size header followed by the unmodified payload. No Base64, no
+ * strings to parse.
+ *
+ * Called by the NBSProxy app. Client apps don't need this.
+ */
+public class Envelope {
+
+    // Layout, all big-endian:
+    //  0: int protocol version (BuildConfig.NBSP_PROTO, as sent in
+    //     NBSProxy.EXTRA_PROTO)
+    //  4: short flags
+    //  6: int message id
+    // 10: short port
+    // 12: payload
+    private static final int HEADER_LEN = 12;
+
+    /** Sender wants to hear how the send went; see NBSProxy.sendAsync() */
+    public static final int FLAG_WANT_RESULTS = 0x0001;
+
+    private static AtomicInteger sNextID = new AtomicInteger( new Random().nextInt() );
+
+    int proto;
+    int flags;
+    int msgID;
+    short port;
+    byte[] data;
+
+    public Envelope( short port, byte[] data )
+    {
+        this( port, data, 0 );
+    }
+
+    public Envelope( short port, byte[] data, int flags )
+    {
+        this( port, data, flags, sNextID.incrementAndGet() );
+    }
+
+    public Envelope( short port, byte[] data, int flags, int msgID )
+    {
+        this.proto = BuildConfig.NBSP_PROTO;
+        this.port = port;
+        this.data = data;
+        this.flags = flags;
+        this.msgID = msgID;
+    }
+
+    public short getPort() { return port; }
+    public byte[] getData() { return data; }
+    public int getFlags() { return flags; }
+    public int getMsgID() { return msgID; }
+    public int getProto() { return proto; }
+    public boolean wantsResults() { return 0 != (flags & FLAG_WANT_RESULTS); }
+
+    public byte[] toBytes()
+    {
+        byte[] result = new byte[HEADER_LEN + data.length];
+        putInt( result, 0, proto );
+        putShort( result, 4, flags );
+        putInt( result, 6, msgID );
+        putShort( result, 10, port );
+        System.arraycopy( data, 0, result, HEADER_LEN, data.length );
+        return result;
+    }
+
+    /**
+     * @return null if bytes is too short to be an Envelope
+     */
+    public static Envelope fromBytes( byte[] bytes )
+    {
+        Envelope result = null;
+        if ( bytes != null && bytes.length >= HEADER_LEN ) {
+            byte[] data = new byte[bytes.length - HEADER_LEN];
+            System.arraycopy( bytes, HEADER_LEN, data, 0, data.length );
+            result = new Envelope( (short)getShort( bytes, 10 ), data,
+                                   getShort( bytes, 4 ), getInt( bytes, 6 ) );
+            result.proto = getInt( bytes, 0 );
+        }
+        return result;
+    }
+
+    private static void putInt( byte[] buf, int offset, int val )
+    {
+        buf[offset] = (byte)(val >> 24);
+        buf[offset + 1] = (byte)(val >> 16);
+        buf[offset + 2] = (byte)(val >> 8);
+        buf[offset + 3] = (byte)val;
+    }
+
+    private static void putShort( byte[] buf, int offset, int val )
+    {
+        buf[offset] = (byte)(val >> 8);
+        buf[offset + 1] = (byte)val;
+    }
+
+    private static int getInt( byte[] buf, int offset )
+    {
+        return ((buf[offset] & 0xFF) << 24)
+            | ((buf[offset + 1] & 0xFF) << 16)
+            | ((buf[offset + 2] & 0xFF) << 8)
+            | (buf[offset + 3] & 0xFF);
+    }
+
+    private static int getShort( byte[] buf, int offset )
+    {
+        return ((buf[offset] & 0xFF) << 8) | (buf[offset + 1] & 0xFF);
+    }
+}
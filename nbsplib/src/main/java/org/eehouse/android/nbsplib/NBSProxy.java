@@ -26,16 +26,23 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.os.Looper;
 import android.support.v4.app.NotificationCompat;
 import android.telephony.TelephonyManager;
-import android.text.TextUtils;
-import android.util.Base64;
 import android.util.Log;
 
 import junit.framework.Assert;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
 /* Rethinking things: this needs to work in the situation where one of two
  * communicating devices has it installed and the other doesn't.
  *
@@ -58,14 +65,19 @@ import junit.framework.Assert;
 
 public class NBSProxy extends BroadcastReceiver {
     private static final String TAG = NBSProxy.class.getSimpleName();
-    private static Callbacks sProcs;
-    private static Object sWaiter = new Object();
+    private static volatile Callbacks sProcs;
 
-    private static String sClientAppID;
-    private static final String TAG() { return TAG + "_" + sClientAppID; }
+    // Built once, not per log call. Logging that happens for every message
+    // is also inside "if ( DEBUG )" so release builds don't build the
+    // strings at all.
+    private static final boolean DEBUG = BuildConfig.DEBUG;
+    private static volatile String sTag = TAG + "_null";
+    private static final String TAG() { return sTag; }
 
     // Keys for passing stuff around in intents.
     public static final String EXTRA_VERSION = TAG + ".version";
+    public static final String EXTRA_PROTO = TAG + ".proto";
+    public static final String EXTRA_ENVELOPE = TAG + ".envelope";
     public static final String EXTRA_PHONE = TAG + ".phone";
     public static final String EXTRA_PORT = TAG + ".port";
     public static final String EXTRA_APPID = TAG + ".appid";
@@ -75,18 +87,73 @@ public class NBSProxy extends BroadcastReceiver {
     public static final String EXTRA_REGRESPTIME = TAG + ".respTime";
     public static final String EXTRA_ERROR_MSG = TAG + ".errmsg";
     public static final String EXTRA_CLIENTOLD = TAG + ".clientOld";
+    public static final String EXTRA_PHONES = TAG + ".phones";
+    public static final String EXTRA_LENS = TAG + ".lens";
+    public static final String EXTRA_DATA = TAG + ".data";
+    public static final String EXTRA_DICT = TAG + ".dict";
+    public static final String EXTRA_COALESCE_MS = TAG + ".coalesceMS";
+    public static final String EXTRA_QUEUE_DEPTH = TAG + ".queueDepth";
+    public static final String EXTRA_QUEUE_WAIT = TAG + ".queueWait";
+    public static final String EXTRA_MSG_ID = TAG + ".msgID";
+    public static final String EXTRA_RESULT = TAG + ".result";
+    public static final String EXTRA_REG_TOKEN = TAG + ".regToken";
+
+    /**
+     * The last version that passed data as Base64 strings and identified
+     * itself with only a version string. The NBSProxy app still talks to
+     * clients built against it.
+     */
+    public static final String LEGACY_VERSION = "0.2.3";
 
     public static final String ACTION_CTRL = "org.eehouse.android.nbsplib.action_ctrl";
 
-    // How long we wait for reg response before suspecting that the NBSProxy
-    // app needs the user to launch it manually for the critical first time in
-    // order that it start being delivered Intents for which its Manifest
-    // registers it.
-    private static final long REG_WAIT_MILLIS = 1000 * 20;
+    // For the Messenger channel to the NBSProxy app's service. See
+    // openChannel()
+    public static final String SERVICE_CLASS = "org.eehouse.android.nbsp.ProxyService";
+    public static final int MSG_HELLO = 1;
+    public static final int MSG_BYE = 2;
+    public static final int MSG_SEND = 3;
+    public static final int MSG_DATA = 4;
+
+    // A registration the NBSProxy app has confirmed isn't repeated until the
+    // app's reinstalled or updated, or this long has passed
+    private static final long REG_REFRESH_MILLIS = 1000 * 60 * 60 * 24 * 7;
+
+    // Keep batches well below the 1MB binder transaction buffer, which is
+    // shared by everything else the process has in flight. sendBatch() splits
+    // into as many Intents as it needs to stay under this.
+    private static final int MAX_BATCH_BYTES = 1024 * 100;
+
+    // Results we're still expecting for sendAsync() calls, oldest first.
+    // An entry goes once its last result's in: SENT, unless the caller
+    // wants DELIVERED, which most carriers never report, so entries are
+    // also dropped after RESULT_TIMEOUT_MILLIS (with onFailed() if they
+    // never got as far as sent).
+    private static final long RESULT_TIMEOUT_MILLIS = 1000 * 60 * 60 * 24;
+    private static LinkedHashMap<Integer, Awaiting> sAwaiting = new LinkedHashMap<>();
+
+    private static class Awaiting {
+        Executor executor;
+        boolean wantDelivery;
+        boolean sent;
+        long since;
+        Awaiting( Executor executor, boolean wantDelivery )
+        {
+            this.executor = executor;
+            this.wantDelivery = wantDelivery;
+            since = System.currentTimeMillis();
+        }
+    }
 
-    private static Thread sWaitThread;
-    private static RegInfo sRegInfo;
-    private static boolean sIsRegistered;
+    // port -> max millis NBSProxy may hold a message; see setCoalesceWindow()
+    private static Map<Short, Integer> sCoalesceMS = new ConcurrentHashMap<>();
+
+    // port -> its registration. A client may register several.
+    private static Map<Short, Registration> sRegs = new ConcurrentHashMap<>();
+
+    // Send time of each outstanding ping() -> who's waiting for it
+    private static ConcurrentHashMap<Long, PingListener> sPings =
+        new ConcurrentHashMap<>();
 
     // values for EXTRA_CMD
     public enum CTRL {
@@ -94,6 +161,22 @@ public class NBSProxy extends BroadcastReceiver {
         SEND,
         APP_LAUNCHED,
         PERMS_GRANTED,
+        SEND_BATCH,
+    }
+
+    // values for EXTRA_RESULT
+    public enum RESULT {
+        SENT,                   // every SMS of the message has gone
+        SEND_FAILED,            // an SMS failed, and will be retried
+        DELIVERED,              // every SMS was reported delivered
+        FAILED,                 // NBSProxy gave up
+    }
+
+    // What addDataListener() does when a listener's queue is full
+    public enum OVERFLOW {
+        DROP_OLDEST,            // make room by dropping the oldest
+        BLOCK,                  // wait (a few seconds at most) for room
+        REJECT,                 // drop the new one
     }
 
     public interface Callbacks {
@@ -103,6 +186,65 @@ public class NBSProxy extends BroadcastReceiver {
         void onDataReceived( short port, String fromPhone, byte[] data );
     }
 
+    /**
+     * Optional: implement this instead of Callbacks to hear when NBSProxy
+     * is holding your messages back. Android stops an app that sends too
+     * many SMS in a short time to ask the user whether to allow it, so
+     * NBSProxy paces what it sends and queues the rest.
+     */
+    public interface SendCallbacks extends Callbacks {
+        /**
+         * Called after a send that had to wait.
+         *
+         * @param port port of the message that was queued
+         * @param depth number of messages (SMS, not calls to send())
+         * waiting, across all apps
+         * @param waitMillis estimate of how long until the queue drains
+         */
+        void onSendQueued( short port, int depth, long waitMillis );
+    }
+
+    /**
+     * Implement this instead of Callbacks to hear what happened to messages
+     * passed to sendAsync(). Each is called on the Executor passed with the
+     * message.
+     */
+    public interface ResultCallbacks extends Callbacks {
+        /**
+         * @param ok true once every SMS carrying the message has been sent.
+         * false the first time one fails; NBSProxy will keep retrying it
+         * unless onFailed() follows.
+         */
+        void onSent( int msgID, boolean ok );
+
+        /**
+         * Every SMS carrying the message was reported delivered. Only
+         * called if sendAsync() was asked to wait for it. Many carriers
+         * never report delivery, so don't count on this.
+         */
+        void onDelivered( int msgID );
+
+        /**
+         * The message won't be sent, or no word came of it for a day.
+         */
+        void onFailed( int msgID, String reason );
+    }
+
+    /**
+     * Receives data for a port; see addDataListener()
+     */
+    public interface DataListener {
+        void onDataReceived( short port, String fromPhone, byte[] data );
+    }
+
+    public interface PingListener {
+        /**
+         * @param reached true if NBSProxy answered in time
+         * @param rttMillis how long the answer took, or -1 if none came
+         */
+        void onPong( boolean reached, long rttMillis );
+    }
+
     /**
      * Meant to be called by your Application's onCreate (which should be
      * called as part of bringing you up for a BroadcastReceiver to be
@@ -122,49 +264,208 @@ public class NBSProxy extends BroadcastReceiver {
      * revist this, as I suspect it's wrong. But it works for now even if it's
      * too cautious.)
      *
-     * @return false if unable to contact the app because an earlier
-     * registration is still waiting a response.
+     * @return false if the NBSProxy app isn't installed. Registration will
+     * happen once it is.
      */
     public static boolean register( Context context, short port,
                                     String appID, Callbacks procs )
     {
-        sClientAppID = appID;
+        return register( context, port, appID, procs, null );
+    }
+
+    /**
+     * Like the above, but asks that data on this port be compressed on the
+     * way out and decompressed on the way in using Deflate with a preset
+     * dictionary. That only works if the app on the other end registers the
+     * same dictionary, so pass the same bytes from every version of your
+     * app. (A good dictionary is a few hundred bytes of strings and
+     * byte-sequences you expect to be common in your messages, the most
+     * common last.) Messages that won't get smaller are sent uncompressed.
+     *
+     * @param dict Dictionary to use, or null for no compression
+     */
+    public static boolean register( Context context, short port,
+                                    String appID, Callbacks procs,
+                                    byte[] dict )
+    {
+        registerAsync( context, port, appID, procs, dict );
+        return isInstalledImpl( context );
+    }
+
+    /**
+     * Like register(), but returns a handle for following the
+     * registration's progress instead of having to wait for
+     * Callbacks.onRegResponse(). (That's still called too.) Nothing blocks:
+     * the REG goes out and this returns.
+     *
+     * Call once per port if you use several. Registering a port again with
+     * the same appID and dict is harmless and returns the same handle.
+     *
+     * Once the NBSProxy app has confirmed a registration, later ones from
+     * new processes are answered from a cache without waiting for it, so
+     * the handle may be complete (and onRegResponse() called) before this
+     * returns. The registration's still sent, and if it goes unanswered
+     * the cache is dropped so the next one waits.
+     */
+    public static Registration registerAsync( Context context, short port,
+                                              String appID, Callbacks procs,
+                                              byte[] dict )
+    {
+        sTag = TAG + "_" + appID;
         sProcs = procs;
-        if ( sRegInfo != null ) {
-            Log.e(TAG(), "register(): reg already pending; dropping it" );
+
+        Registration reg;
+        synchronized ( sRegs ) {
+            reg = sRegs.get( port );
+            if ( reg == null || !reg.isFor( appID, dict ) ) {
+                if ( reg != null ) {
+                    reg.reset();
+                }
+                reg = new Registration( port, appID, dict );
+                sRegs.put( port, reg );
+            }
         }
-        sRegInfo = new RegInfo( port, appID );
-        return tryRegister( context );
+        tryRegister( context, reg );
+        return reg;
     }
 
-    private static boolean tryRegister( Context context )
+    private static void tryRegisterAll( Context context )
     {
-        Log.d( TAG(), "tryRegister()" );
-        boolean result = false;
+        for ( Registration reg : sRegs.values() ) {
+            tryRegister( context, reg );
+        }
+    }
+
+    private static void tryRegister( Context context, Registration reg )
+    {
+        Log.d( TAG(), "tryRegister(" + reg.port + ")" );
         if ( !isInstalledImpl( context ) ) {
             Log.e( TAG(), "tryRegister(): NBSProxy not installed; later..." );
-        } else if ( !sIsRegistered && sRegInfo != null ) {
-            // Caller can't just call <code>register( new Callbacks(){} )</code>
-            // or with no other reference to the proc it'll get gc'd. So force
-            // them to pass an Application that implements Callbacks. If other's
-            // use this and care, I'll address.
-
-            boolean threadNotRunning = false;
-            synchronized ( NBSProxy.class ) {
-                threadNotRunning = sWaitThread == null;
-                if ( threadNotRunning ) {
-                    sWaitThread = startWaitThread( context );
-                }
+        } else if ( isCached( context, reg ) ) {
+            if ( reg.markRegistered() ) {
+                Log.d( TAG(), "tryRegister(): already registered" );
+                notifyRegResponse( true, false );
+                // Send anyway: the app may have lost it (e.g. had its data
+                // cleared), or be stopped, which only a wait can detect
+                reconfirm( context, reg );
             }
+            startReceiver( context );
+        } else if ( reg.start( context, RttEstimator.getTimeout( context ) ) ) {
+            sendRegIntent( context, reg, reg.getSentAt() );
+            startReceiver( context );
+        }
+    }
+
+    // Send a registration that's been answered from the cache, and forget
+    // the cached answer if the app doesn't confirm it in time
+    private static void reconfirm( final Context context, final Registration reg )
+    {
+        final long sentAt = System.currentTimeMillis();
+        Registration.getHandler().postDelayed( new Runnable() {
+                @Override
+                public void run() {
+                    uncacheIfOlder( context, reg, sentAt );
+                }
+            }, RttEstimator.getTimeout( context ) );
+        sendRegIntent( context, reg, sentAt );
+    }
+
+    // Called on the main thread when reg has gone unanswered too long
+    static void onRegTimeout( Context context, Registration reg )
+    {
+        RttEstimator.onTimeout( context );
+        boolean needsInitialLaunch =
+            getInstallTime( context ) > getReceiveTime( context );
+        if ( reg.finish( false, needsInitialLaunch ) ) {
+            notifyRegResponse( false, needsInitialLaunch );
+        }
+    }
+
+    /**
+     * Have data arriving on port passed to listener, on executor, instead
+     * of to Callbacks.onDataReceived() on the main thread. (That's still
+     * how data's delivered on ports with no listeners.) A port can have
+     * several; each gets every message, in order, and a slow one holds up
+     * only itself. Adding the same listener again replaces it.
+     *
+     * @param maxQueued how many messages may be waiting for listener
+     * before overflow applies
+     * @param overflow what to do with the next when that many are waiting.
+     * Whatever's dropped is counted; see getDroppedCount()
+     */
+    public static void addDataListener( short port, DataListener listener,
+                                        Executor executor, int maxQueued,
+                                        OVERFLOW overflow )
+    {
+        Dispatcher.add( port, listener, executor, maxQueued, overflow );
+    }
+
+    public static void removeDataListener( short port, DataListener listener )
+    {
+        Dispatcher.remove( port, listener );
+    }
 
-            if ( threadNotRunning ) {
-                sendRegIntent( context );
+    /**
+     * @return how many messages port's current listeners have lost to
+     * overflow
+     */
+    public static long getDroppedCount( short port )
+    {
+        return Dispatcher.getDropped( port );
+    }
 
-                startReceiver( context );
+    /**
+     * Check that the NBSProxy app is answering, waiting only about as long
+     * as it usually takes to. Unlike a registration's timeout this never
+     * concludes NBSProxy needs launching; it just reports what happened.
+     *
+     * The ping is a repeat of a registration you've already made, which
+     * NBSProxy answers without doing anything else, so register() first.
+     * If there's nothing registered or NBSProxy isn't installed, listener
+     * is called before this returns. Otherwise it's called on the main
+     * thread.
+     */
+    public static void ping( final Context context, final PingListener listener )
+    {
+        Registration reg = null;
+        for ( Registration cur : sRegs.values() ) {
+            reg = cur;
+        }
+        if ( reg == null || !isInstalledImpl( context ) ) {
+            listener.onPong( false, -1 );
+        } else {
+            // The send time comes back as EXTRA_REGTIME, so must be unique
+            long now = System.currentTimeMillis();
+            while ( null != sPings.putIfAbsent( now, listener ) ) {
+                ++now;
             }
-            result = threadNotRunning;
+            final long sentAt = now;
+            Registration.getHandler().postDelayed( new Runnable() {
+                    @Override
+                    public void run() {
+                        if ( null != sPings.remove( sentAt ) ) {
+                            RttEstimator.onTimeout( context );
+                            listener.onPong( false, -1 );
+                        }
+                    }
+                }, RttEstimator.getTimeout( context ) );
+            sendRegIntent( context, reg, sentAt );
+        }
+    }
+
+    private static void notifyRegResponse( boolean appReached,
+                                           boolean needsInitialLaunch )
+    {
+        // the app can't need launching if we reached it!
+        Assert.assertTrue( !needsInitialLaunch || !appReached );
+        Callbacks procs = sProcs;
+        if ( procs != null ) {
+            Log.d( TAG(), "calling onRegResponse(appReached=" + appReached
+                   + ", needsInitialLaunch=" + needsInitialLaunch + ")");
+            procs.onRegResponse( appReached, needsInitialLaunch );
+        } else {
+            Log.e( TAG(), "notifyRegResponse(): no callbacks!!" );
         }
-        return result;
     }
 
     /**
@@ -204,7 +505,10 @@ public class NBSProxy extends BroadcastReceiver {
     }
 
     /**
-     * sends data to app on remote device. Size limit of around 140 bytes.
+     * sends data to app on remote device. Anything over around 130 bytes is
+     * split into several messages and reassembled on the other end, up to a
+     * limit of 3900 bytes. Small is still better: each piece costs a message,
+     * and if any is lost the whole thing is.
      *
      * @param phone number of device to send to
      * @param port NBS port at which to deliver on remote device
@@ -215,16 +519,201 @@ public class NBSProxy extends BroadcastReceiver {
     {
         Log.d( TAG(), "given data of len " + data.length
                + " to send on port " + port );
-        String asStr = Base64.encodeToString( data, Base64.NO_WRAP );
 
-        Intent intent = getBaseIntent( CTRL.SEND )
-            .putExtra( Intent.EXTRA_TEXT, asStr )
-            .putExtra( EXTRA_PHONE, phone )
+        sendEnvelope( context, phone, new Envelope( port, data ) );
+    }
+
+    /**
+     * Like send(), but NBSProxy reports what becomes of the message via
+     * your ResultCallbacks (which procs passed to register() must implement
+     * for this to be useful). Messages sent this way are never coalesced
+     * (see setCoalesceWindow()), as they'd no longer map to a single
+     * result. You'll hear whether it was sent, not whether it was
+     * delivered.
+     *
+     * @param executor where to make the ResultCallbacks calls for this
+     * message
+     *
+     * @return the id passed to ResultCallbacks methods for this message
+     */
+    public static int sendAsync( Context context, String phone, short port,
+                                 byte[] data, Executor executor )
+    {
+        return sendAsync( context, phone, port, data, executor, false );
+    }
+
+    /**
+     * Like sendAsync() above, but with the option of also hearing about
+     * delivery.
+     *
+     * @param wantDelivery if true, onDelivered() is called should the
+     * carrier report delivery. Otherwise NBSProxy stops listening for the
+     * message once it's sent.
+     */
+    public static int sendAsync( Context context, String phone, short port,
+                                 byte[] data, Executor executor,
+                                 boolean wantDelivery )
+    {
+        Envelope envelope = new Envelope( port, data, Envelope.FLAG_WANT_RESULTS );
+        int msgID = envelope.getMsgID();
+        synchronized ( sAwaiting ) {
+            sAwaiting.put( msgID, new Awaiting( executor, wantDelivery ) );
+        }
+        expireAwaiting();
+        sendEnvelope( context, phone, envelope );
+        return msgID;
+    }
+
+    private static void sendEnvelope( Context context, String phone, Envelope env )
+    {
+        byte[] envelope = env.toBytes();
+        short port = env.getPort();
+        String appID = context.getPackageName();
+        int coalesceMS = getCoalesceWindow( port );
+        if ( Channel.send( appID, phone, envelope, coalesceMS ) ) {
+            Log.d( TAG(), "send(): sent via channel" );
+        } else {
+            Intent intent = getBaseIntent( CTRL.SEND )
+                .putExtra( EXTRA_ENVELOPE, envelope )
+                .putExtra( EXTRA_PHONE, phone )
+                .putExtra( EXTRA_APPID, appID )
+                .putExtra( EXTRA_COALESCE_MS, coalesceMS )
+                ;
+            context.sendBroadcast( intent );
+            Log.d( TAG(), "launching intent " + intent + " at: org.eehouse.android.nbsp" );
+        }
+    }
+
+    /**
+     * Optional: lets NBSProxy hold small messages sent on port for up to
+     * maxDelayMillis so that several bound for the same phone can share a
+     * single SMS. Worth it if your traffic comes in bursts of small
+     * messages; the other end unpacks them and delivers them one at a time,
+     * in order. (It must be running a version of NBSProxy that knows how.)
+     *
+     * Held messages are kept only in NBSProxy's memory until they're sent.
+     * If its process is killed meanwhile they're lost without any result
+     * being reported, so don't use this for messages you can't afford to
+     * lose or resend yourself.
+     *
+     * @param maxDelayMillis longest any message may be held. 0 (the
+     * default) turns it off.
+     */
+    public static void setCoalesceWindow( short port, int maxDelayMillis )
+    {
+        if ( 0 < maxDelayMillis ) {
+            sCoalesceMS.put( port, maxDelayMillis );
+        } else {
+            sCoalesceMS.remove( port );
+        }
+    }
+
+    private static int getCoalesceWindow( short port )
+    {
+        Integer result = sCoalesceMS.get( port );
+        return result == null ? 0 : result;
+    }
+
+    /**
+     * Optional: for apps that send or receive a lot while they're in the
+     * foreground. Binds to a service in the NBSProxy app, after which send()
+     * and incoming data use it rather than a broadcast per message. Call from
+     * e.g. your main Activity's onStart(), and call closeChannel() from
+     * onStop() so NBSProxy isn't kept running when you're not.
+     *
+     * Until the connection's up, or if NBSProxy's too old to offer it,
+     * everything falls back to broadcasts, so there's no need to wait.
+     */
+    public static void openChannel( Context context )
+    {
+        Channel.open( context, context.getPackageName() );
+    }
+
+    public static void closeChannel( Context context )
+    {
+        Channel.close( context, context.getPackageName() );
+    }
+
+    /**
+     * A single message, for passing to sendBatch()
+     */
+    public static class Message {
+        String phone;
+        short port;
+        byte[] data;
+        public Message( String phone, short port, byte[] data )
+        {
+            this.phone = phone;
+            this.port = port;
+            this.data = data;
+        }
+
+        // What this costs in a Parcel, roughly: phone's a UTF-16 string
+        int approxSize() { return data.length + 12 + 4 + (phone.length() * 2); }
+    }
+
+    /**
+     * Like send(), but passes any number of messages to the NBSProxy app in
+     * as few Intents as possible, so that it checks permissions etc. once
+     * rather than once per message. Use when you have several messages ready
+     * to go at once.
+     *
+     * @param msgs messages to be sent, in order
+     */
+    public static void sendBatch( Context context, List<Message> msgs )
+    {
+        int start = 0;
+        while ( start < msgs.size() ) {
+            // Always take at least one message
+            int end = start + 1;
+            int total = msgs.get(start).approxSize();
+            while ( end < msgs.size()
+                    && total + msgs.get(end).approxSize() < MAX_BATCH_BYTES ) {
+                total += msgs.get(end).approxSize();
+                ++end;
+            }
+
+            sendBatchIntent( context, msgs.subList( start, end ), total );
+            start = end;
+        }
+    }
+
+    private static void sendBatchIntent( Context context, List<Message> msgs,
+                                         int sizeHint )
+    {
+        int count = msgs.size();
+        String[] phones = new String[count];
+        byte[][] envelopes = new byte[count][];
+        int[] lens = new int[count];
+        int[] coalesceMSs = new int[count];
+        int dataLen = 0;
+        for ( int ii = 0; ii < count; ++ii ) {
+            Message msg = msgs.get(ii);
+            phones[ii] = msg.phone;
+            coalesceMSs[ii] = getCoalesceWindow( msg.port );
+            envelopes[ii] = new Envelope( msg.port, msg.data ).toBytes();
+            lens[ii] = envelopes[ii].length;
+            dataLen += lens[ii];
+        }
+
+        // One array of envelopes, back-to-back
+        byte[] data = new byte[dataLen];
+        int offset = 0;
+        for ( byte[] envelope : envelopes ) {
+            System.arraycopy( envelope, 0, data, offset, envelope.length );
+            offset += envelope.length;
+        }
+
+        Intent intent = getBaseIntent( CTRL.SEND_BATCH )
+            .putExtra( EXTRA_PHONES, phones )
+            .putExtra( EXTRA_LENS, lens )
+            .putExtra( EXTRA_COALESCE_MS, coalesceMSs )
+            .putExtra( EXTRA_DATA, data )
             .putExtra( EXTRA_APPID, context.getPackageName() )
-            .putExtra( EXTRA_PORT, port )
             ;
         context.sendBroadcast( intent );
-        Log.d( TAG(), "launching intent " + intent + " at: org.eehouse.android.nbsp" );
+        Log.d( TAG(), "sendBatchIntent(): sent " + count + " msgs (~"
+               + sizeHint + " bytes)" );
     }
 
     /**
@@ -234,17 +723,29 @@ public class NBSProxy extends BroadcastReceiver {
 
     private static long getInstallTime( Context context )
     {
-        long result = 0;
+        PackageInfo pi = getProxyPackageInfo( context );
+        long result = pi == null ? 0 : pi.firstInstallTime;
+        Log.d( TAG(), "getInstallTime() => " + result + " ("
+               + (System.currentTimeMillis() - result) / 1000 + " seconds ago)" );
+        return result;
+    }
+
+    // Changes whenever NBSProxy's reinstalled or updated
+    private static long getUpdateTime( Context context )
+    {
+        PackageInfo pi = getProxyPackageInfo( context );
+        return pi == null ? 0 : pi.lastUpdateTime;
+    }
+
+    private static PackageInfo getProxyPackageInfo( Context context )
+    {
+        PackageInfo result = null;
         String name = BuildConfig.NBSPROXY_APPLICATION_ID;
         PackageManager pm = context.getPackageManager();
         try {
-            PackageInfo pi = pm.getPackageInfo( name, 0 );
-            result = pi.firstInstallTime;
+            result = pm.getPackageInfo( name, 0 );
         } catch (PackageManager.NameNotFoundException | NullPointerException e) {
         }
-
-        Log.d( TAG(), "getInstallTime() => " + result + " ("
-               + (System.currentTimeMillis() - result) / 1000 + " seconds ago)" );
         return result;
     }
 
@@ -259,12 +760,14 @@ public class NBSProxy extends BroadcastReceiver {
     {
         boolean installed = isInstalledImpl( context );
         if ( !installed ) {
-            sIsRegistered = false;
+            for ( Registration reg : sRegs.values() ) {
+                reg.reset();
+            }
         }
 
         if ( installed && !sWasInstalled ) {
             Log.d( TAG(), "isInstalled(): first time!" );
-            tryRegister( context );
+            tryRegisterAll( context );
         }
         sWasInstalled = installed;
 
@@ -295,7 +798,9 @@ public class NBSProxy extends BroadcastReceiver {
     @Override
     public void onReceive( Context context, Intent intent )
     {
-        Log.d( TAG(), "onReceive()" );
+        if ( DEBUG ) {
+            Log.d( TAG(), "onReceive()" );
+        }
         if ( intent != null
              && Intent.ACTION_SEND.equals(intent.getAction())
              && "text/nbsdata_rx".equals( intent.getType() ) ) {
@@ -303,32 +808,213 @@ public class NBSProxy extends BroadcastReceiver {
             persistReceiveTime( context );
 
             if ( 0 == versionOk( intent ) ) {
-                if ( handleRegResponse( context, intent ) ) {
-                    // nothing to do
-                } else {
-                    String text = intent.getStringExtra( Intent.EXTRA_TEXT );
-                    String phone = intent.getStringExtra( EXTRA_PHONE );
-                    short port = intent.getShortExtra( EXTRA_PORT, (short)-1 );
-                    if ( text == null ) {
-                        Log.e( TAG(), "onReceive(): null text" );
-                    } else if ( phone == null ) {
-                        Log.e( TAG(), "onReceive(): null phone" );
-                    } else if ( port == -1 ) {
-                        Log.e( TAG(), "onReceive(): missing port" );
+                // Data's far commoner than anything else, so look for it
+                // first
+                final byte[] bytes = intent.getByteArrayExtra( EXTRA_ENVELOPE );
+                if ( bytes == null ) {
+                    if ( handleRegResponse( context, intent ) ) {
+                        // nothing to do
+                    } else if ( intent.hasExtra( EXTRA_RESULT ) ) {
+                        handleResult( intent );
+                    } else if ( intent.hasExtra( EXTRA_QUEUE_DEPTH ) ) {
+                        handleQueueReport( intent );
                     } else {
-                        byte[] data = Base64.decode( text, Base64.NO_WRAP );
-                        Callbacks procs = sProcs;
-                        if ( procs != null ) {
-                            Log.d( TAG(), "onReceive(): passing " + data.length + " bytes from "
-                                   + phone );
-                            procs.onDataReceived( port, phone, data );
+                        Log.e( TAG(), "onReceive(): no envelope" );
+                    }
+                } else if ( Dispatcher.isActive() ) {
+                    // Decode and queue off the main thread. The listeners'
+                    // Executors take it from there.
+                    final PendingResult pending = goAsync();
+                    final String phone = intent.getStringExtra( EXTRA_PHONE );
+                    Dispatcher.post( new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    receive( phone, bytes );
+                                } finally {
+                                    pending.finish();
+                                }
+                            }
+                        } );
+                } else {
+                    receive( intent.getStringExtra( EXTRA_PHONE ), bytes );
+                }
+            }
+        }
+    }
+
+    private static void handleQueueReport( Intent intent )
+    {
+        short port = intent.getShortExtra( EXTRA_PORT, (short)-1 );
+        int depth = intent.getIntExtra( EXTRA_QUEUE_DEPTH, 0 );
+        long waitMillis = intent.getLongExtra( EXTRA_QUEUE_WAIT, 0 );
+        Log.d( TAG(), "handleQueueReport(): " + depth + " queued; wait ~"
+               + waitMillis + "ms" );
+        Callbacks procs = sProcs;
+        if ( procs instanceof SendCallbacks ) {
+            ((SendCallbacks)procs).onSendQueued( port, depth, waitMillis );
+        }
+    }
+
+    private static void handleResult( Intent intent )
+    {
+        int msgID = intent.getIntExtra( EXTRA_MSG_ID, 0 );
+        int ordinal = intent.getIntExtra( EXTRA_RESULT, 0 );
+        RESULT[] results = RESULT.values();
+        if ( ordinal < 0 || ordinal >= results.length ) {
+            // A newer proxy's, maybe. Whatever it means, the message's
+            // left waiting for expireAwaiting() to time it out
+            Log.e( TAG(), "handleResult(" + msgID + "): unknown result "
+                   + ordinal + "; dropping" );
+        } else {
+            handleResult( msgID, results[ordinal],
+                          intent.getStringExtra( EXTRA_ERROR_MSG ) );
+        }
+    }
+
+    private static void handleResult( final int msgID, final RESULT result,
+                                      final String reason )
+    {
+        Log.d( TAG(), "handleResult(" + msgID + "): " + result );
+
+        Awaiting awaiting;
+        synchronized ( sAwaiting ) {
+            awaiting = sAwaiting.get( msgID );
+            if ( awaiting == null ) {
+                // nothing to do
+            } else if ( RESULT.DELIVERED == result || RESULT.FAILED == result
+                        || (RESULT.SENT == result && !awaiting.wantDelivery) ) {
+                sAwaiting.remove( msgID );
+            } else if ( RESULT.SENT == result ) {
+                awaiting.sent = true;
+            }
+        }
+        expireAwaiting();
+
+        final Callbacks procs = sProcs;
+        if ( awaiting == null ) {
+            Log.d( TAG(), "handleResult(): nobody waiting for " + msgID );
+        } else if ( procs instanceof ResultCallbacks ) {
+            awaiting.executor.execute( new Runnable() {
+                    @Override
+                    public void run() {
+                        ResultCallbacks rprocs = (ResultCallbacks)procs;
+                        switch ( result ) {
+                        case SENT:
+                            rprocs.onSent( msgID, true );
+                            break;
+                        case SEND_FAILED:
+                            rprocs.onSent( msgID, false );
+                            break;
+                        case DELIVERED:
+                            rprocs.onDelivered( msgID );
+                            break;
+                        case FAILED:
+                            rprocs.onFailed( msgID, reason );
+                            break;
                         }
                     }
+                } );
+        }
+    }
+
+    // Drop entries that have waited too long, telling the caller about any
+    // that was never reported sent
+    private static void expireAwaiting()
+    {
+        Map<Integer, Executor> unsent = new LinkedHashMap<>();
+        synchronized ( sAwaiting ) {
+            long tooOld = System.currentTimeMillis() - RESULT_TIMEOUT_MILLIS;
+            Iterator<Map.Entry<Integer, Awaiting>> iter = sAwaiting.entrySet().iterator();
+            while ( iter.hasNext() ) {
+                Map.Entry<Integer, Awaiting> entry = iter.next();
+                Awaiting awaiting = entry.getValue();
+                if ( awaiting.since > tooOld ) {
+                    break;      // the rest are newer
+                }
+                if ( !awaiting.sent ) {
+                    unsent.put( entry.getKey(), awaiting.executor );
                 }
+                iter.remove();
+            }
+        }
+
+        final Callbacks procs = sProcs;
+        if ( procs instanceof ResultCallbacks ) {
+            for ( final Map.Entry<Integer, Executor> entry : unsent.entrySet() ) {
+                Log.d( TAG(), "expireAwaiting(): timing out " + entry.getKey() );
+                entry.getValue().execute( new Runnable() {
+                        @Override
+                        public void run() {
+                            ((ResultCallbacks)procs).onFailed( entry.getKey(),
+                                                               "timed out" );
+                        }
+                    } );
             }
         }
     }
 
+    private static void receive( String phone, byte[] bytes )
+    {
+        Envelope envelope = Envelope.fromBytes( bytes );
+        if ( envelope == null ) {
+            Log.e( TAG(), "receive(): no envelope" );
+        } else if ( phone == null ) {
+            Log.e( TAG(), "receive(): null phone" );
+        } else {
+            deliver( phone, envelope );
+        }
+    }
+
+    // Data's arrived, whether by broadcast or over the Channel
+    static void deliver( Context context, final String phone,
+                         final Envelope envelope )
+    {
+        persistReceiveTime( context );
+        if ( Dispatcher.isActive() ) {
+            Dispatcher.post( new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver( phone, envelope );
+                    }
+                } );
+        } else {
+            deliver( phone, envelope );
+        }
+    }
+
+    // Callbacks.onDataReceived() is always called on the main thread, as it
+    // was before there were DataListeners
+    private static void deliver( final String phone, Envelope envelope )
+    {
+        final short port = envelope.getPort();
+        final byte[] data = envelope.getData();
+        if ( Dispatcher.dispatch( port, phone, data ) ) {
+            // nothing to do
+        } else if ( Looper.myLooper() == Looper.getMainLooper() ) {
+            passToProcs( port, phone, data );
+        } else {
+            Registration.getHandler().post( new Runnable() {
+                    @Override
+                    public void run() {
+                        passToProcs( port, phone, data );
+                    }
+                } );
+        }
+    }
+
+    private static void passToProcs( short port, String phone, byte[] data )
+    {
+        Callbacks procs = sProcs;
+        if ( procs != null ) {
+            if ( DEBUG ) {
+                Log.d( TAG(), "deliver(): passing " + data.length + " bytes from "
+                       + phone );
+            }
+            procs.onDataReceived( port, phone, data );
+        }
+    }
+
     /**
      * Called by the NBSProxy app. Client apps don't need this.
      *
@@ -338,7 +1024,10 @@ public class NBSProxy extends BroadcastReceiver {
      *
      * Version string is something like 1.2.3, with 1 and 2 the major and
      * minor version numbers and 3 the release. If the first two are the same
-     * the versions are compatible and match.
+     * the versions are compatible and match. Newer intents carry the same
+     * thing as an int in EXTRA_PROTO (one byte each for major, minor and
+     * release) so there's nothing to parse; the string's only consulted when
+     * that's missing.
      *
      * @param intent Intent received from the other side
      *
@@ -347,20 +1036,68 @@ public class NBSProxy extends BroadcastReceiver {
      * version is older.
      */
     public static int versionOk( Intent intent )
+    {
+        int proto = intent.getIntExtra( EXTRA_PROTO, 0 );
+        return versionOk( proto,
+                          0 != proto ? null : intent.getStringExtra( EXTRA_VERSION ) );
+    }
+
+    /**
+     * versionOk() on what's been pulled out of the intent: the values of
+     * EXTRA_PROTO (0 if missing) and EXTRA_VERSION.
+     */
+    public static int versionOk( int proto, String version )
+    {
+        int result;
+        if ( 0 != proto ) {
+            // Ignore the release byte: like the string, only major and minor
+            // need to match
+            result = (BuildConfig.NBSP_PROTO >> 8) - (proto >> 8);
+        } else {
+            result = versionStringOk( version );
+        }
+        return result;
+    }
+
+    /**
+     * Called by the NBSProxy app. Client apps don't need this.
+     *
+     * @return true if the intent comes from a client built against a
+     * LEGACY_VERSION library, and so carries its data as Base64 strings.
+     */
+    public static boolean isLegacy( Intent intent )
+    {
+        boolean result = false;
+        if ( !intent.hasExtra( EXTRA_PROTO ) ) {
+            String version = intent.getStringExtra( EXTRA_VERSION );
+            result = version != null && version.startsWith( "0.2." );
+        }
+        return result;
+    }
+
+    // The pre-EXTRA_PROTO way of checking, still needed for intents from
+    // older versions
+    private static int versionStringOk( String version )
     {
         int result = 0;
-        String version = intent.getStringExtra( EXTRA_VERSION );
         if ( version == null || version.length() == 0 ) {
             result = -1;        // missing means you're older
         } else {
-            String[] received = TextUtils.split(version, "\\.");
-            String[] mine = TextUtils.split(BuildConfig.NBSP_VERSION, "\\.");
-            Assert.assertTrue( mine.length == 3 );
-            if ( received.length != 3 ) {
+            // Ours needn't be parsed: NBSP_PROTO is the same thing
+            int dot1 = version.indexOf( '.' );
+            int dot2 = dot1 < 0 ? -1 : version.indexOf( '.', dot1 + 1 );
+            if ( dot2 < 0 || 0 <= version.indexOf( '.', dot2 + 1 ) ) {
                 result = -1;    // bad format? You're older
             } else {
-                for ( int ii = 0; result == 0 && ii < 2; ++ii ) {
-                    result = Integer.valueOf(mine[ii]) - Integer.valueOf(received[ii]);
+                try {
+                    int major = Integer.parseInt( version.substring( 0, dot1 ) );
+                    int minor = Integer.parseInt( version.substring( dot1 + 1, dot2 ) );
+                    result = ((BuildConfig.NBSP_PROTO >> 16) & 0xFF) - major;
+                    if ( result == 0 ) {
+                        result = ((BuildConfig.NBSP_PROTO >> 8) & 0xFF) - minor;
+                    }
+                } catch ( NumberFormatException nfe ) {
+                    result = -1;
                 }
             }
         }
@@ -369,17 +1106,18 @@ public class NBSProxy extends BroadcastReceiver {
         return result;
     }
 
-    private static void sendRegIntent( Context context )
+    private static void sendRegIntent( Context context, Registration reg,
+                                       long sentAt )
     {
-        if ( sRegInfo != null ) {
-            Intent intent = getBaseIntent( CTRL.REG )
-                .putExtra( EXTRA_PORT, sRegInfo.port )
-                .putExtra( EXTRA_APPID, sRegInfo.appID )
-                .putExtra( EXTRA_REGTIME, System.currentTimeMillis() )
-                ;
-            Log.d( TAG(), "sendRegIntent() sending " + intent );
-            context.sendBroadcast( intent );
-        }
+        Intent intent = getBaseIntent( CTRL.REG )
+            .putExtra( EXTRA_PORT, reg.port )
+            .putExtra( EXTRA_APPID, reg.appID )
+            .putExtra( EXTRA_DICT, reg.dict )
+            .putExtra( EXTRA_REG_TOKEN, reg.token )
+            .putExtra( EXTRA_REGTIME, sentAt )
+            ;
+        Log.d( TAG(), "sendRegIntent() sending " + intent );
+        context.sendBroadcast( intent );
     }
 
     // Return true IFF it's a reg response and not a message to be forwarded.
@@ -391,12 +1129,32 @@ public class NBSProxy extends BroadcastReceiver {
             long respTime = intent.getLongExtra( NBSProxy.EXTRA_REGRESPTIME, -1 );
             if ( respTime != -1 ) {
                 isRegResponse = true;
-                sIsRegistered = true;
 
                 long waitTime = System.currentTimeMillis() - regTime;
                 Log.d( TAG(), "got regResponse; round trip took " + waitTime + "ms" );
-                synchronized ( sWaiter ) {
-                    sWaiter.notify();
+                RttEstimator.sample( context, waitTime );
+
+                PingListener pinger = sPings.remove( regTime );
+                if ( pinger != null ) {
+                    pinger.onPong( true, waitTime );
+                } else {
+                    // Newer NBSProxy apps echo the port; with older ones, the
+                    // timestamp identifies the registration
+                    short port = intent.getShortExtra( EXTRA_PORT, (short)-1 );
+                    Registration reg = null;
+                    for ( Registration cur : sRegs.values() ) {
+                        if ( port == -1 ? cur.getSentAt() == regTime : cur.port == port ) {
+                            reg = cur;
+                        }
+                    }
+                    if ( reg != null && reg.finish( true, false ) ) {
+                        notifyRegResponse( true, false );
+                    }
+                    // Only NBSProxy apps that know about tokens echo it
+                    if ( reg != null
+                         && reg.token == intent.getLongExtra( EXTRA_REG_TOKEN, 0 ) ) {
+                        cacheReg( context, reg );
+                    }
                 }
             }
         }
@@ -422,7 +1180,7 @@ public class NBSProxy extends BroadcastReceiver {
                         break;
                     case APP_LAUNCHED:
                         if ( procs != null ) {
-                            tryRegister( context );
+                            tryRegisterAll( context );
                             procs.onProxyAppLaunched();
                         }
                         break;
@@ -434,51 +1192,12 @@ public class NBSProxy extends BroadcastReceiver {
         }
     }
 
-    private static Thread startWaitThread( final Context context )
-    {
-        Log.d( TAG(), "startWaitThread()" );
-        Thread result = new Thread( new Runnable() {
-                @Override
-                public void run() {
-                    Log.d( TAG(), "startWaitThread.run()" );
-                    synchronized ( sWaiter ) {
-                        try {
-                            long startMS = System.currentTimeMillis();
-                            sWaiter.wait( REG_WAIT_MILLIS );
-                            long tookMillis = System.currentTimeMillis() - startMS;
-                            Log.d( TAG(), "startWaitThread(appID=" + sRegInfo.appID
-                                   + "): wait returned after " + tookMillis + "ms" );
-                            Callbacks procs = sProcs;
-                            if ( procs != null ) {
-                                boolean appReached = tookMillis < REG_WAIT_MILLIS;
-                                boolean needsInitialLaunch =
-                                    getInstallTime( context ) > getReceiveTime( context );
-                                // the app can't need launching if we reached it!
-                                Assert.assertTrue( !needsInitialLaunch || !appReached );
-                                Log.d( TAG(), "calling onRegResponse(appReached=" + appReached
-                                       + ", needsInitialLaunch=" + needsInitialLaunch + ")");
-                                procs.onRegResponse( appReached, needsInitialLaunch );
-                            } else {
-                                Log.e( TAG(), "startWaitThread(): no callbacks!!" );
-                            }
-                        } catch ( InterruptedException ex ) {
-                            Log.d( TAG(), "startWaitThread(): interrupted: " +
-                                   ex.getMessage() );
-                        }
-                    }
-                    synchronized ( NBSProxy.class ) {
-                        sWaitThread = null;
-                    }
-                    Log.d( TAG(), "startWaitThread.run() DONE" );
-                }
-            } );
-        result.start();
-        return result;
-    }
-
     private static Intent getBaseIntent( CTRL cmd )
     {
+        // EXTRA_VERSION is for NBSProxy apps that predate EXTRA_PROTO, so they
+        // can report the mismatch
         Intent intent = new Intent()
+            .putExtra( EXTRA_PROTO, BuildConfig.NBSP_PROTO )
             .putExtra( EXTRA_VERSION, BuildConfig.NBSP_VERSION )
             .putExtra( EXTRA_CMD, cmd.ordinal() )
             .setAction( Intent.ACTION_SEND )
@@ -493,31 +1212,90 @@ public class NBSProxy extends BroadcastReceiver {
     // prompt the user to launch it so it can start receiving intents.
     private static final String HIDDEN_PREFS = TAG + ".nbsp_hidden";
     private static final String KEY_RECEIVE_STAMP = TAG + ".receiveStamp";
-    private static void persistReceiveTime( Context context )
+    static SharedPreferences getHiddenPrefs( Context context )
+    {
+        return context.getSharedPreferences( HIDDEN_PREFS, Context.MODE_PRIVATE );
+    }
+
+    // It's only compared with NBSProxy's install time, so needn't be
+    // written for every message. getReceiveTime() uses the in-memory copy
+    // too, so within a process nothing's lost.
+    private static final long RECEIVE_STAMP_INTERVAL = 1000 * 60 * 10;
+    private static long sReceiveStamp;  // latest receipt
+    private static long sStoredStamp = -1; // as in prefs; -1: not read yet
+
+    private static synchronized void persistReceiveTime( Context context )
     {
         long stamp = System.currentTimeMillis();
-        context.getSharedPreferences( HIDDEN_PREFS, Context.MODE_PRIVATE )
+        sReceiveStamp = stamp;
+        if ( sStoredStamp == -1 ) {
+            sStoredStamp = getHiddenPrefs( context ).getLong( KEY_RECEIVE_STAMP, 0 );
+        }
+        if ( stamp - sStoredStamp >= RECEIVE_STAMP_INTERVAL || stamp < sStoredStamp ) {
+            sStoredStamp = stamp;
+            getHiddenPrefs( context )
+                .edit()
+                .putLong( KEY_RECEIVE_STAMP, stamp )
+                .apply()
+                ;
+        }
+    }
+
+    // The NBSProxy app confirmed reg; remember that so the next process
+    // needn't ask again
+    private static final String KEY_REG_TOKEN = TAG + ".regToken:";
+    private static final String KEY_REG_UPDATE = TAG + ".regUpdate:";
+    private static final String KEY_REG_STAMP = TAG + ".regStamp:";
+    private static void cacheReg( Context context, Registration reg )
+    {
+        getHiddenPrefs( context )
             .edit()
-            .putLong( KEY_RECEIVE_STAMP, stamp )
+            .putLong( KEY_REG_TOKEN + reg.port, reg.token )
+            .putLong( KEY_REG_UPDATE + reg.port, getUpdateTime( context ) )
+            .putLong( KEY_REG_STAMP + reg.port, System.currentTimeMillis() )
             .apply()
             ;
     }
 
-    private static long getReceiveTime( Context context )
+    // Drop the cached reg unless it's been confirmed since when
+    private static void uncacheIfOlder( Context context, Registration reg, long when )
     {
-        long result = context
-            .getSharedPreferences( HIDDEN_PREFS, Context.MODE_PRIVATE )
-            .getLong( KEY_RECEIVE_STAMP, 0);
-        Log.d( TAG(), "getReceiveTime() => " + result );
+        SharedPreferences prefs = getHiddenPrefs( context );
+        if ( prefs.getLong( KEY_REG_STAMP + reg.port, 0 ) < when ) {
+            Log.d( TAG(), "uncacheIfOlder(" + reg.port + "): no answer; uncaching" );
+            RttEstimator.onTimeout( context );
+            prefs.edit()
+                .remove( KEY_REG_TOKEN + reg.port )
+                .remove( KEY_REG_UPDATE + reg.port )
+                .remove( KEY_REG_STAMP + reg.port )
+                .apply()
+                ;
+        }
+    }
+
+    private static boolean isCached( Context context, Registration reg )
+    {
+        SharedPreferences prefs = getHiddenPrefs( context );
+        long age = System.currentTimeMillis()
+            - prefs.getLong( KEY_REG_STAMP + reg.port, 0 );
+        boolean result = reg.token == prefs.getLong( KEY_REG_TOKEN + reg.port, 0 )
+            && getUpdateTime( context ) == prefs.getLong( KEY_REG_UPDATE + reg.port, 0 )
+            && 0 <= age && age < REG_REFRESH_MILLIS;
+        Log.d( TAG(), "isCached(" + reg.port + ") => " + result );
         return result;
     }
 
-    private static class RegInfo {
-        short port;
-        String appID;
-        public RegInfo( short port, String appID ) {
-            this.port = port;
-            this.appID = appID;
-        }
+    private static synchronized long getLatestReceipt()
+    {
+        return sReceiveStamp;
+    }
+
+    private static long getReceiveTime( Context context )
+    {
+        long result = Math.max( getHiddenPrefs( context )
+                                .getLong( KEY_RECEIVE_STAMP, 0 ),
+                                getLatestReceipt() );
+        Log.d( TAG(), "getReceiveTime() => " + result );
+        return result;
     }
 }
@@ -0,0 +1,245 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2019 by Eric House (eehouse@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.eehouse.android.nbsplib;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Handle for one port's registration with the NBSProxy app, returned by
+ * NBSProxy.registerAsync().
+ *
+ * It's a little state machine: IDLE until the REG goes out, then PENDING
+ * until either the response comes (REGISTERED) or a timer fires
+ * (TIMED_OUT). A response arriving after the timeout still counts. Nothing
+ * blocks waiting: the timeout's posted to the main thread's Handler.
+ */
+public class Registration {
+    private static final String TAG = Registration.class.getSimpleName();
+
+    public interface Listener {
+        /**
+         * Same meaning as NBSProxy.Callbacks.onRegResponse(). Called on
+         * the main thread, or on the caller's if it's already done when
+         * passed to addListener().
+         */
+        void onRegResult( Registration reg, boolean appReached,
+                          boolean needsInitialLaunch );
+    }
+
+    private static final int IDLE = 0;
+    private static final int PENDING = 1;
+    private static final int REGISTERED = 2;
+    private static final int TIMED_OUT = 3;
+
+    private static Handler sHandler;
+
+    final short port;
+    final String appID;
+    final byte[] dict;
+    // Identifies what's being registered; see NBSProxy.isCached()
+    final long token;
+
+    private AtomicInteger mState = new AtomicInteger( IDLE );
+    private volatile long mSentAt;
+    private Runnable mTimeout;
+    // Guarded by this, as are the results
+    private List<Listener> mListeners = new ArrayList<>();
+    private boolean mAppReached;
+    private boolean mNeedsInitialLaunch;
+
+    Registration( short port, String appID, byte[] dict )
+    {
+        this.port = port;
+        this.appID = appID;
+        this.dict = dict;
+
+        CRC32 crc = new CRC32();
+        crc.update( port >> 8 );
+        crc.update( port );
+        crc.update( appID.getBytes() );
+        if ( dict != null ) {
+            crc.update( dict );
+        }
+        // update(int) takes only the low byte
+        int proto = BuildConfig.NBSP_PROTO;
+        crc.update( proto >> 24 );
+        crc.update( proto >> 16 );
+        crc.update( proto >> 8 );
+        crc.update( proto );
+        token = crc.getValue();
+    }
+
+    public short getPort() { return port; }
+
+    /**
+     * @return true once the NBSProxy app has answered, or we've given up
+     * waiting
+     */
+    public boolean isDone()
+    {
+        int state = mState.get();
+        return REGISTERED == state || TIMED_OUT == state;
+    }
+
+    public boolean isRegistered() { return REGISTERED == mState.get(); }
+
+    /**
+     * Arrange to hear the outcome. If there already is one, listener's
+     * called before this returns.
+     */
+    public void addListener( Listener listener )
+    {
+        boolean done;
+        boolean appReached;
+        boolean needsInitialLaunch;
+        synchronized ( this ) {
+            done = isDone();
+            appReached = mAppReached;
+            needsInitialLaunch = mNeedsInitialLaunch;
+            if ( !done ) {
+                mListeners.add( listener );
+            }
+        }
+        if ( done ) {
+            listener.onRegResult( this, appReached, needsInitialLaunch );
+        }
+    }
+
+    boolean isFor( String appID, byte[] dict )
+    {
+        return this.appID.equals( appID )
+            && Arrays.equals( this.dict, dict );
+    }
+
+    long getSentAt() { return mSentAt; }
+
+    /**
+     * Move to PENDING, unless already there or registered.
+     *
+     * @return true if caller should now send the REG
+     */
+    boolean start( final Context context, long timeoutMS )
+    {
+        boolean started = mState.compareAndSet( IDLE, PENDING )
+            || mState.compareAndSet( TIMED_OUT, PENDING );
+        if ( started ) {
+            mSentAt = System.currentTimeMillis();
+            Runnable timeout = new Runnable() {
+                    @Override
+                    public void run() {
+                        NBSProxy.onRegTimeout( context, Registration.this );
+                    }
+                };
+            synchronized ( this ) {
+                mTimeout = timeout;
+            }
+            getHandler().postDelayed( timeout, timeoutMS );
+        }
+        return started;
+    }
+
+    /**
+     * Move straight from IDLE to REGISTERED, for when the NBSProxy app
+     * already has this registration, and tell the listeners.
+     *
+     * @return true if this call made the transition
+     */
+    boolean markRegistered()
+    {
+        List<Listener> listeners = null;
+        synchronized ( this ) {
+            if ( mState.compareAndSet( IDLE, REGISTERED ) ) {
+                mAppReached = true;
+                mNeedsInitialLaunch = false;
+                listeners = mListeners;
+                mListeners = new ArrayList<>();
+            }
+        }
+        if ( listeners != null ) {
+            for ( Listener listener : listeners ) {
+                listener.onRegResult( this, true, false );
+            }
+        }
+        return listeners != null;
+    }
+
+    /**
+     * Move from PENDING (or, if appReached, TIMED_OUT) to done, and tell
+     * the listeners.
+     *
+     * @return true if this call made the transition
+     */
+    boolean finish( boolean appReached, boolean needsInitialLaunch )
+    {
+        List<Listener> listeners = null;
+        synchronized ( this ) {
+            if ( mState.compareAndSet( PENDING, appReached ? REGISTERED : TIMED_OUT )
+                 || ( appReached && mState.compareAndSet( TIMED_OUT, REGISTERED ) ) ) {
+                mAppReached = appReached;
+                mNeedsInitialLaunch = needsInitialLaunch;
+                listeners = mListeners;
+                mListeners = new ArrayList<>();
+                if ( mTimeout != null ) {
+                    getHandler().removeCallbacks( mTimeout );
+                    mTimeout = null;
+                }
+            }
+        }
+
+        if ( listeners != null ) {
+            Log.d( TAG, "finish(port=" + port + ", appReached=" + appReached + ")" );
+            for ( Listener listener : listeners ) {
+                listener.onRegResult( this, appReached, needsInitialLaunch );
+            }
+        }
+        return listeners != null;
+    }
+
+    /**
+     * Back to IDLE, e.g. because the NBSProxy app's been uninstalled
+     */
+    void reset()
+    {
+        synchronized ( this ) {
+            if ( mTimeout != null ) {
+                getHandler().removeCallbacks( mTimeout );
+                mTimeout = null;
+            }
+            mState.set( IDLE );
+        }
+    }
+
+    static synchronized Handler getHandler()
+    {
+        if ( sHandler == null ) {
+            sHandler = new Handler( Looper.getMainLooper() );
+        }
+        return sHandler;
+    }
+}
@@ -0,0 +1,124 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2019 by Eric House (eehouse@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.eehouse.android.nbsplib;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Decides how long to wait for the NBSProxy app to answer a REG or ping
+ * before deciding it can't be reached.
+ *
+ * Works the way TCP computes its retransmission timeout (RFC 6298): keep a
+ * smoothed round trip time and its mean deviation, and wait for the first
+ * plus four times the second. Each timeout doubles the wait until an answer
+ * comes. Until there's a sample we wait MAX_TIMEOUT_MS, as we always used
+ * to.
+ *
+ * The state's kept with NBSProxy's other hidden prefs so a new process
+ * doesn't start from scratch.
+ */
+class RttEstimator {
+    private static final String TAG = RttEstimator.class.getSimpleName();
+
+    // Never less than this: the first intent after boot or a long idle has
+    // to wait for the NBSProxy app's process to start
+    private static final long MIN_TIMEOUT_MS = 1000 * 2;
+    private static final long MAX_TIMEOUT_MS = 1000 * 20;
+
+    private static final String KEY_SRTT = TAG + ".srtt";
+    private static final String KEY_RTTVAR = TAG + ".rttvar";
+    private static final String KEY_BACKOFF = TAG + ".backoff";
+
+    private static boolean sLoaded;
+    private static long sSrtt;          // 0 means no sample yet
+    private static long sRttVar;
+    private static int sBackoff;        // timeouts since last sample
+
+    /**
+     * Record a round trip. Ones longer than we'd ever wait (e.g. the user
+     * launched NBSProxy long after a REG timed out) count as that long.
+     */
+    static synchronized void sample( Context context, long rttMS )
+    {
+        load( context );
+        long rtt = Math.max( 0, Math.min( rttMS, MAX_TIMEOUT_MS ) );
+        if ( 0 == sSrtt ) {
+            sSrtt = Math.max( 1, rtt );
+            sRttVar = rtt / 2;
+        } else {
+            sRttVar = (3 * sRttVar + Math.abs( sSrtt - rtt )) / 4;
+            sSrtt = Math.max( 1, (7 * sSrtt + rtt) / 8 );
+        }
+        sBackoff = 0;
+        save( context );
+        Log.d( TAG, "sample(" + rttMS + "): srtt=" + sSrtt + "; rttvar=" + sRttVar );
+    }
+
+    static synchronized void onTimeout( Context context )
+    {
+        load( context );
+        if ( getTimeoutImpl() < MAX_TIMEOUT_MS ) {
+            ++sBackoff;
+            save( context );
+        }
+    }
+
+    static synchronized long getTimeout( Context context )
+    {
+        load( context );
+        long result = getTimeoutImpl();
+        Log.d( TAG, "getTimeout() => " + result );
+        return result;
+    }
+
+    private static long getTimeoutImpl()
+    {
+        long result = MAX_TIMEOUT_MS;
+        if ( 0 != sSrtt ) {
+            result = (sSrtt + 4 * sRttVar) << Math.min( sBackoff, 8 );
+            result = Math.max( MIN_TIMEOUT_MS, Math.min( MAX_TIMEOUT_MS, result ) );
+        }
+        return result;
+    }
+
+    private static void load( Context context )
+    {
+        if ( !sLoaded ) {
+            sLoaded = true;
+            SharedPreferences prefs = NBSProxy.getHiddenPrefs( context );
+            sSrtt = prefs.getLong( KEY_SRTT, 0 );
+            sRttVar = prefs.getLong( KEY_RTTVAR, 0 );
+            sBackoff = prefs.getInt( KEY_BACKOFF, 0 );
+        }
+    }
+
+    private static void save( Context context )
+    {
+        NBSProxy.getHiddenPrefs( context )
+            .edit()
+            .putLong( KEY_SRTT, sSrtt )
+            .putLong( KEY_RTTVAR, sRttVar )
+            .putInt( KEY_BACKOFF, sBackoff )
+            .apply()
+            ;
+    }
+}